@@ -55,9 +55,23 @@ class BBnode {
     
     protected int non_zero_values;  
     
+    //sum and maximum of the intensities of the BB (BB_STATS table); the maximum is 
+    //unknown, and the BB is never pruned by intensity, if the database has no statistics
+    protected float sum_intensity = 0;
+    protected float max_intensity = Float.POSITIVE_INFINITY;
+    
+    //ID of the BB in the BBs table (-1 if the BB has not been stored yet)
+    protected int id = -1;
+    
+    //position of the BB among the mz tiles of its strip (see MzRTree.compute_BB(..))
+    protected int mz_tile = -1;
+    
     //is the bounding box sparse? that is: is its density smaller or equal than Utils.DENSITY?
     protected boolean is_sparse = false;
     
+    //distinct mz values of a dense BB, by increasing values (null if the BB is sparse)
+    protected float[] mz_axis = null;
+    
     //name of the file strip_X_Y.dat that contains the current BB.
     //We have: file_name[Utils.STRIP_NUM]=X and file_name[Utils.STRIP_SUB_NUM]=Y. 
     protected int[] file_name = {-1, -1};
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import mzRTreeDBSwath.DBmzRTree.MzIntList;
+
+/**
+ * The extraction of many targets at once (see DBmzRTree.range_query(List<Target>)).
+ *
+ * Targets are grouped by window and, in each window, targets whose mz ranges overlap
+ * are grouped in a cluster. The BBs table is queried once per cluster, reading only the
+ * coordinates of the BBs, and each BB is assigned to the targets it intersects. Then
+ * the data of each BB is read and decoded once (or read from the tile cache), and its
+ * peaks are copied to all its targets.
+ */
+class BatchQuery {
+
+	private final DBmzRTree mzRTreeDB;
+
+	protected BatchQuery(DBmzRTree mzRTreeDB) {
+		this.mzRTreeDB = mzRTreeDB;
+	}
+
+	/**
+	 * A target with its window and its range of scans (relative to the window).
+	 */
+	private static class Extraction {
+		private final int scan_i, scan_f;
+		private final float mz_i, mz_f;
+		private final ArrayList<MzIntList> rows;
+
+		private Extraction(int scan_i, int scan_f, float mz_i, float mz_f, ArrayList<MzIntList> rows) {
+			this.scan_i = scan_i;
+			this.scan_f = scan_f;
+			this.mz_i = mz_i;
+			this.mz_f = mz_f;
+			this.rows = rows;
+		}
+
+		private boolean intersects(BBnode bb) {
+			return bb.min_rt <= scan_f && bb.max_rt >= scan_i && bb.min_mz <= mz_f && bb.max_mz >= mz_i;
+		}
+	}
+
+	/**
+	 * A BB and the targets it intersects. The BB is decoded in the union of their ranges.
+	 */
+	private static class SharedBB {
+		private final BBnode bb;
+		private final ArrayList<Extraction> extractions = new ArrayList<Extraction>();
+		private int scan_i = Integer.MAX_VALUE, scan_f = Integer.MIN_VALUE;
+		private float mz_i = Float.MAX_VALUE, mz_f = -Float.MAX_VALUE;
+
+		private SharedBB(BBnode bb) {
+			this.bb = bb;
+		}
+
+		private void add(Extraction extraction) {
+			extractions.add(extraction);
+			scan_i = Math.min(scan_i, extraction.scan_i);
+			scan_f = Math.max(scan_f, extraction.scan_f);
+			mz_i = Math.min(mz_i, extraction.mz_i);
+			mz_f = Math.max(mz_f, extraction.mz_f);
+		}
+	}
+
+	/**
+	 * @return for each target, in the same order, the peaks of its scans as returned by
+	 * 			DBmzRTree.range_query(rt_i, rt_f, mz_i, mz_f, precursor); an empty list if
+	 * 			no window contains the precursor or no scan is in the retention time range
+	 * @throws SQLException
+	 */
+	protected ArrayList<ArrayList<MzIntList>> run(List<Target> targets) throws SQLException {
+		SwathCatalog catalog = mzRTreeDB.getSwathCatalog();
+		ScanIndex index = mzRTreeDB.getScanIndex();
+
+		// resolve the targets and group them by window
+		ArrayList<ArrayList<MzIntList>> results = new ArrayList<ArrayList<MzIntList>>(targets.size());
+		ArrayList<ArrayList<Extraction>> swaths = new ArrayList<ArrayList<Extraction>>(catalog.size());
+		for (int swath = 0; swath < catalog.size(); swath++) {
+			swaths.add(new ArrayList<Extraction>());
+		}
+		for (Target target : targets) {
+			ArrayList<MzIntList> rows = new ArrayList<MzIntList>();
+			results.add(rows);
+			int swath = catalog.getSwath(target.precursor);
+			if (swath < 0) continue;
+			int[] scans = index.getScanRange(swath, target.rt_i, target.rt_f);
+			if (scans == null) continue;
+			for (int scan = scans[0]; scan <= scans[1]; scan++) {
+				rows.add(mzRTreeDB.new MzIntList());
+			}
+			swaths.get(swath).add(new Extraction(scans[0], scans[1], target.mz_i, target.mz_f, rows));
+		}
+
+		for (int swath = 0; swath < swaths.size(); swath++) {
+			if (!swaths.get(swath).isEmpty()) {
+				extract(swaths.get(swath), swath);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Extract the targets of a window.
+	 *
+	 * @param extractions	the targets of the window
+	 * @param swath			the window
+	 * @throws SQLException
+	 */
+	private void extract(ArrayList<Extraction> extractions, int swath) throws SQLException {
+		Collections.sort(extractions, new Comparator<Extraction>() {
+			@Override
+			public int compare(Extraction a, Extraction b) {
+				return Float.compare(a.mz_i, b.mz_i);
+			}
+		});
+
+		// assign each BB to the targets it intersects, one cluster of targets at a time
+		HashMap<Integer, SharedBB> sharedBBs = new HashMap<Integer, SharedBB>();
+		for (int first = 0; first < extractions.size(); ) {
+			int last = first;
+			int scan_i = extractions.get(first).scan_i, scan_f = extractions.get(first).scan_f;
+			float mz_i = extractions.get(first).mz_i, mz_f = extractions.get(first).mz_f;
+			while (last + 1 < extractions.size() && extractions.get(last + 1).mz_i <= mz_f) {
+				last++;
+				scan_i = Math.min(scan_i, extractions.get(last).scan_i);
+				scan_f = Math.max(scan_f, extractions.get(last).scan_f);
+				mz_f = Math.max(mz_f, extractions.get(last).mz_f);
+			}
+
+			for (BBnode bb : mzRTreeDB.getBBs(scan_i, scan_f, mz_i, mz_f, swath)) {
+				SharedBB sharedBB = sharedBBs.get(bb.id);
+				if (sharedBB == null) {
+					sharedBB = new SharedBB(bb);
+					sharedBBs.put(bb.id, sharedBB);
+				}
+				for (int i = first; i <= last; i++) {
+					if (extractions.get(i).intersects(bb)) {
+						sharedBB.add(extractions.get(i));
+					}
+				}
+			}
+			first = last + 1;
+		}
+
+		// decode each BB once. BBs are sorted by mz so that the peaks of each row are sorted.
+		ArrayList<SharedBB> bbs = new ArrayList<SharedBB>(sharedBBs.values());
+		Collections.sort(bbs, new Comparator<SharedBB>() {
+			@Override
+			public int compare(SharedBB a, SharedBB b) {
+				return Float.compare(a.bb.min_mz, b.bb.min_mz);
+			}
+		});
+		for (SharedBB sharedBB : bbs) {
+			if (sharedBB.extractions.isEmpty()) continue;
+			final ArrayList<Extraction> targets = sharedBB.extractions;
+			mzRTreeDB.decode(sharedBB.bb, sharedBB.scan_i, sharedBB.scan_f, sharedBB.mz_i, sharedBB.mz_f, new PeakVisitor() {
+				@Override
+				public void visit(int scan, float mz, float intensity) {
+					for (int i = 0; i < targets.size(); i++) {
+						Extraction target = targets.get(i);
+						if (scan >= target.scan_i && scan <= target.scan_f && mz > target.mz_i && mz <= target.mz_f) {
+							target.rows.get(scan - target.scan_i).add(mz, intensity);
+						}
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+/**
+ * Options used by MzRTree when an mzRTree is built from an mzXML file. The default
+ * values reproduce the sequential build: strips are encoded and stored by the thread
+ * reading the mzXML file.
+ */
+public class BuildOptions {
+
+	//codecs for the sparse BBs (see TileCodecs): the original layout of mz and intensity 
+	//float pairs, or mz values saved as variable-length deltas
+	public static final int TILE_CODEC_SPARSE = 0;
+	public static final int TILE_CODEC_DELTA_VARINT = 1;
+	//lossy codec for all the BBs: mz values within mz_error_ppm, intensities in 16 bits (see PpmQuantizedCodec)
+	public static final int TILE_CODEC_PPM_QUANTIZED = 2;
+
+	//each level of the pyramid bins PYRAMID_FACTOR times more scans and mz values than the previous one
+	public static final int PYRAMID_FACTOR = 4;
+
+	//number of threads computing BBs and encoding strips. If build_threads<=1 strips are
+	//encoded by the thread reading the mzXML file, otherwise they are encoded by a pool of
+	//build_threads workers and stored by a single writer thread owning the SQLite connection.
+	public int build_threads = 1;
+
+	//codec used for sparse BBs. Dense BBs (see Utils.DENSITY) are saved as complete matrices,
+	//unless tile_codec is TILE_CODEC_PPM_QUANTIZED.
+	public int tile_codec = TILE_CODEC_SPARSE;
+
+	//maximum error on mz values (in ppm) when tile_codec is TILE_CODEC_PPM_QUANTIZED
+	public float mz_error_ppm = 1;
+
+	//if true, the binary data of each BB is compressed with java.util.zip
+	public boolean compress_tiles = false;
+
+	//if true, the binary data of the BBs is appended to a flat file next to the database
+	//(see TileStore) instead of the DATA table, and queries read it from memory mapped pages
+	public boolean tile_file = false;
+
+	//number of downsampled levels saved after the BBs at full resolution (see PyramidLevel),
+	//0 for none: the level l (from 1) bins PYRAMID_FACTOR^l scans and 
+	//pyramid_mz_bin * PYRAMID_FACTOR^(l-1) Th, so that overviews of large ranges 
+	//(see DBmzRTree.overview(..)) do not read the BBs at full resolution
+	public int pyramid_levels = 0;
+	public float pyramid_mz_bin = 0.1f;
+}
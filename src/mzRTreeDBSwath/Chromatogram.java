@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+/**
+ * An extracted ion chromatogram (see DBmzRTree.xic(..)): for each scan of a range, its
+ * retention time and the sum (or the maximum) of the intensities of its peaks in a range
+ * of mz values.
+ */
+public class Chromatogram {
+
+	//how the intensities of the peaks of a scan are aggregated
+	public static final int SUM = 0;
+	public static final int MAX = 1;
+
+	private final int first_scan;
+	private final float[] rts;
+	private final float[] intensities;
+
+	protected Chromatogram(int first_scan, float[] rts, float[] intensities) {
+		this.first_scan = first_scan;
+		this.rts = rts;
+		this.intensities = intensities;
+	}
+
+	/**
+	 * @return the scan (relative to the swath) of the first point
+	 */
+	public int getFirstScan() {
+		return first_scan;
+	}
+
+	/**
+	 * @return the retention time of each scan
+	 */
+	public float[] getRTs() {
+		return rts;
+	}
+
+	/**
+	 * @return the aggregated intensity of each scan (0 if the scan has no peaks in the range)
+	 */
+	public float[] getIntensities() {
+		return intensities;
+	}
+}
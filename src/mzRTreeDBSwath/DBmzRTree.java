@@ -20,6 +20,9 @@
 package mzRTreeDBSwath;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -27,6 +30,19 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.sqlite.SQLiteConfig;
@@ -34,16 +50,87 @@ import org.sqlite.SQLiteConfig.SynchronousMode;
 
 public class DBmzRTree{
 
-	private static final byte[] SPARSE_MATRIX = { 'S', 'P', 'A', 'R' };
+	// BBs of a window intersecting a range of scans and a range of mz values (the precursor 
+	// range of a BB is the range of its window, see setSwathBounds(..))
+	private static final String BBS_LIST_QUERY = "SELECT minScan, maxScan, minMz, maxMz, BBsData FROM BBs, DATA" +
+			" WHERE BBs_ID = ID" +
+			" AND minScan <= ? AND maxScan >= ? AND minMz <= ? AND maxMz >= ? AND minMzPrec = ? AND maxMzPrec = ?" +
+			" ORDER BY minMz"; // + " ORDER BY BBs_ID"); // sorting not needed because of the data mapped to the matrix
+	// the same BBs, without their data
+	private static final String BBS_INFO_QUERY = "SELECT ID, minScan, maxScan, minMz, maxMz FROM BBs" +
+			" WHERE minScan <= ? AND maxScan >= ? AND minMz <= ? AND maxMz >= ? AND minMzPrec = ? AND maxMzPrec = ?" +
+			" ORDER BY minMz";
+	// the same BBs with their maximum intensity, without the ones whose peaks are all below an intensity
+	private static final String BBS_ABOVE_QUERY = "SELECT ID, minScan, maxScan, minMz, maxMz, maxIntensity FROM BBs, BB_STATS" +
+			" WHERE BBs_ID = ID" +
+			" AND minScan <= ? AND maxScan >= ? AND minMz <= ? AND maxMz >= ? AND minMzPrec = ? AND maxMzPrec = ?" +
+			" AND maxIntensity >= ?" +
+			" ORDER BY minMz";
+	private static final String BB_DATA_QUERY = "SELECT BBsData FROM DATA WHERE BBs_ID = ?";
+
+	// bytes of the database file mapped in memory by each read-only connection 
+	// (ignored by SQLite versions older than 3.7.17)
+	private static final long READ_ONLY_MMAP_SIZE = 1L << 30;
+
 	private String filePath;
 	private SQLiteConfig config;
 	private Connection connection;
+	private StatementCache statements;
+	private volatile SwathCatalog swathCatalog;
+	private volatile ScanIndex scanIndex;
+	// statistics of the scans, null if the database has none (see getScanStats())
+	private volatile ScanStats scanStats = null;
+	private volatile boolean scanStatsLoaded = false;
+	// does the database have the BB_STATS and SCAN_STATS tables? (null if not checked yet)
+	private volatile Boolean hasStats = null;
+	// the levels of the pyramid, by level from 1 (null if not loaded yet, see getPyramid())
+	private volatile PyramidLevel[] pyramid = null;
+
+	// read-only mode: each thread has its own connection and statements
+	private final boolean readOnly;
+	private ThreadLocal<Reader> readers;
+	private final ArrayList<Reader> allReaders = new ArrayList<Reader>();
+	private volatile boolean closed = false;
+
+	// decoded BBs (null if BBs are decoded at each query)
+	private volatile TileCache tileCache = null;
+
+	// the file of the BBs, if they are not saved in the DATA table (see BuildOptions.tile_file)
+	private volatile TileStore tileStore = null;
+	private volatile boolean tileStoreLoaded = false;
+
+	// the BBs table loaded in memory (see setMemoryRTree(..))
+	private volatile boolean useMemoryRTree = false;
+	private volatile MemoryRTree memoryRTree = null;
+
+	// run the parts of a query in parallel, in read-only mode (see invoke(..))
+	private ExecutorService queryThreads = null;
 
 	public DBmzRTree(String filePath, boolean createDB) throws SQLException, ClassNotFoundException {		
+		this(filePath, createDB, false);
+	}
+
+	/**
+	 * @param readOnly	if true, the mzRTree is opened read-only and can be queried by several
+	 * 					threads at the same time: each thread uses its own connection (opened
+	 * 					at its first query, with memory mapped I/O) and its own statements.
+	 * 					The SWATH windows and the scan index are shared.
+	 */
+	public DBmzRTree(String filePath, boolean createDB, boolean readOnly) throws SQLException, ClassNotFoundException {		
 		this.filePath = filePath;
+		this.readOnly = readOnly;
 		this.config = new SQLiteConfig();
 		this.config.setSynchronous(SynchronousMode.OFF);
-		if (createDB){
+		if (readOnly){
+			if (createDB) throw new IllegalArgumentException("A read-only mzRTree cannot be created");
+			this.config.setReadOnly(true);
+			this.readers = new ThreadLocal<Reader>();
+			// load the shared state once, before threads use it
+			getSwathCatalog();
+			getScanIndex();
+			getTileStore();
+		}
+		else if (createDB){
 			try {
 				this.createDB();
 			} catch (ClassNotFoundException e) {
@@ -63,6 +150,9 @@ public class DBmzRTree{
 	 * @throws SQLException
 	 */
 	public Connection getConnection() throws SQLException {
+		if (readOnly){
+			return reader().connection;
+		}
 		if (connection == null){
 			try {
 				Class.forName("org.sqlite.JDBC");
@@ -71,13 +161,109 @@ public class DBmzRTree{
 			}
 			connection = DriverManager.getConnection("jdbc:sqlite:" + this.filePath);
 			// SQLite optimization (not good to do it at every connection call!!)
-			connection.createStatement().execute("PRAGMA journal_mode=WAL");
-			connection.createStatement().execute("PRAGMA synchronous=OFF");
+			// the statements are closed: the result of journal_mode, left pending, would
+			// make commits fail with "database is locked" while a reader is connected
+			Statement stat = connection.createStatement();
+			stat.execute("PRAGMA journal_mode=WAL");
+			stat.execute("PRAGMA synchronous=OFF");
+			stat.close();
 			connection.setAutoCommit(false); // only required if autocommit state not known
 		}
 		return connection;
 	}
 
+	/**
+	 * @param sql	a query, with a '?' for each parameter
+	 * 
+	 * @return the prepared statement of the query, prepared only at the first call
+	 * @throws SQLException
+	 */
+	protected PreparedStatement prepare(String sql) throws SQLException {
+		if (readOnly) {
+			return reader().statements.prepare(sql);
+		}
+		if (statements == null) {
+			statements = new StatementCache(getConnection());
+		}
+		return statements.prepare(sql);
+	}
+
+	/**
+	 * Close the prepared statements and the connection to the database.
+	 * 
+	 * @throws SQLException
+	 */
+	public void close() throws SQLException {
+		if (readOnly) {
+			closed = true;
+			synchronized (this) {
+				if (queryThreads != null) queryThreads.shutdown();
+				queryThreads = null;
+			}
+			synchronized (allReaders) {
+				for (Reader reader : allReaders) {
+					reader.close();
+				}
+				allReaders.clear();
+			}
+			return;
+		}
+		try {
+			if (statements != null) statements.close();
+		} finally {
+			statements = null;
+			if (connection != null) connection.close();
+			connection = null;
+		}
+	}
+
+	/**
+	 * @return the connection and the statements of the calling thread, in read-only mode
+	 * @throws SQLException
+	 */
+	private Reader reader() throws SQLException {
+		if (closed) throw new SQLException("The mzRTree has been closed");
+		Reader reader = readers.get();
+		if (reader == null) {
+			try {
+				Class.forName("org.sqlite.JDBC");
+			} catch (ClassNotFoundException e) {
+				e.printStackTrace();
+			}
+			Connection connection = DriverManager.getConnection("jdbc:sqlite:" + this.filePath, config.toProperties());
+			Statement stat = connection.createStatement();
+			stat.execute("PRAGMA mmap_size=" + READ_ONLY_MMAP_SIZE);
+			stat.close();
+			reader = new Reader(connection);
+			readers.set(reader);
+			synchronized (allReaders) {
+				allReaders.add(reader);
+			}
+		}
+		return reader;
+	}
+
+	/**
+	 * A read-only connection and its statements, used by a single thread.
+	 */
+	private static class Reader {
+		private final Connection connection;
+		private final StatementCache statements;
+
+		private Reader(Connection connection) {
+			this.connection = connection;
+			this.statements = new StatementCache(connection);
+		}
+
+		private void close() throws SQLException {
+			try {
+				statements.close();
+			} finally {
+				connection.close();
+			}
+		}
+	}
+
 	public void createDB() throws ClassNotFoundException, SQLException{
 		Connection connection = this.getConnection();
 		Statement stat = connection.createStatement();
@@ -99,7 +285,9 @@ public class DBmzRTree{
 		stat.executeUpdate("CREATE TABLE METADATA (" +
 				"lowest_mz  FLOAT NOT NULL,"+
 				"highest_mz  FLOAT NOT NULL,"+
-				"maxScanNumber INT NOT NULL)");
+				"maxScanNumber INT NOT NULL," +
+				"mzErrorPpm  FLOAT NOT NULL DEFAULT 0," +
+				"intensityRelError  FLOAT NOT NULL DEFAULT 0)");
 
 		stat.executeUpdate("CREATE TABLE SCAN_RT (" +
 				"scanNumberAllLevels  INT NOT NULL," +
@@ -111,12 +299,89 @@ public class DBmzRTree{
 				"maxMz  FLOAT NOT NULL," +
 				"PRIMARY KEY  (minMz,maxMz))");
 
+		// position of the BBs in the file of the BBs (see BuildOptions.tile_file)
+		stat.executeUpdate("CREATE TABLE TILES (" +
+				"BBs_ID  INTEGER NOT NULL," +
+				"tileOffset  INTEGER NOT NULL," +
+				"tileLength  INTEGER NOT NULL," +
+				"PRIMARY KEY  (BBs_ID))");
+		// a new database has no BBs: remove the file of a previous one
+		getTileFile().delete();
+
+		// sum and maximum of the intensities and number of peaks of each BB and of each scan
+		stat.executeUpdate("CREATE TABLE BB_STATS (" +
+				"BBs_ID  INTEGER NOT NULL," +
+				"sumIntensity  FLOAT NOT NULL," +
+				"maxIntensity  FLOAT NOT NULL," +
+				"pointCount  INTEGER NOT NULL," +
+				"PRIMARY KEY  (BBs_ID))");
+		stat.executeUpdate("CREATE TABLE SCAN_STATS (" +
+				"scanNumberAllLevels  INT NOT NULL," +
+				"sumIntensity  FLOAT NOT NULL," +
+				"maxIntensity  FLOAT NOT NULL," +
+				"pointCount  INTEGER NOT NULL," +
+				"PRIMARY KEY  (scanNumberAllLevels))");
+		hasStats = null;
+
+		// the levels of the pyramid (see PyramidLevel), whose BBs are in BBs_L<level> and DATA_L<level>
+		stat.executeUpdate("CREATE TABLE PYRAMID (" +
+				"level  INTEGER NOT NULL," +
+				"scanBin  INTEGER NOT NULL," +
+				"mzBin  FLOAT NOT NULL," +
+				"mzOrigin  FLOAT NOT NULL," +
+				"PRIMARY KEY  (level))");
+		pyramid = null;
+
 		stat.close();
 		connection.commit();
 	}
 
 
 
+	/**
+	 * Create the tables of a level of the pyramid.
+	 */
+	protected void createPyramidLevel(PyramidLevel level) throws SQLException {
+		Connection connection = this.getConnection();
+		Statement stat = connection.createStatement();
+		stat.executeUpdate("CREATE VIRTUAL TABLE " + bbsTable(level.level) + " USING rtree (" +
+				"ID  INTEGER NOT NULL," +
+				"minScan  INTEGER NOT NULL," +
+				"maxScan  INTEGER NOT NULL," +
+				"minMz  FLOAT NOT NULL," +
+				"maxMz  FLOAT NOT NULL," +
+				"minMzPrec  FLOAT NOT NULL," +
+				"maxMzPrec  FLOAT NOT NULL)");
+		stat.executeUpdate("CREATE TABLE " + dataTable(level.level) + " (" +
+				"BBs_ID  INTEGER NOT NULL," +
+				"BBsData  BLOB NOT NULL," +
+				"PRIMARY KEY  (BBs_ID))");
+		stat.close();
+		PreparedStatement prepStat = connection.prepareStatement("INSERT INTO PYRAMID VALUES (?,?,?,?)");
+		prepStat.setInt(1, level.level);
+		prepStat.setInt(2, level.scan_bin);
+		prepStat.setFloat(3, level.mz_bin);
+		prepStat.setFloat(4, level.mz_origin);
+		prepStat.executeUpdate();
+		prepStat.close();
+		connection.commit();
+		pyramid = null;
+	}
+
+	/**
+	 * @return the table of the BBs of a level of the pyramid, BBs for the full resolution
+	 */
+	protected static String bbsTable(int level) {
+		return level == 0 ? "BBs" : "BBs_L" + level;
+	}
+
+	/**
+	 * @return the table of the binary data of a level of the pyramid, DATA for the full resolution
+	 */
+	protected static String dataTable(int level) {
+		return level == 0 ? "DATA" : "DATA_L" + level;
+	}
+
 	public void insertData(int currentScan, float currentMz, int bb_number, float currentIonCounts, PreparedStatement prepStat) throws SQLException{
 		prepStat.setInt(1, currentScan);
 		prepStat.setFloat(2, currentMz);
@@ -134,6 +399,7 @@ public class DBmzRTree{
 		prepStat.setFloat(6, min_prec);
 		prepStat.setFloat(7, max_prec);
 		prepStat.addBatch();
+		memoryRTree = null; // the BBs table is changing
 	}
 
 	public void insertBBsToSpectrumList(int currentScan, int bb_number,PreparedStatement prepStat) throws SQLException {
@@ -147,61 +413,289 @@ public class DBmzRTree{
 		prepStat.setInt(1, scanAbs);
 		prepStat.setFloat(2, retTime);
 		prepStat.addBatch();
+		scanIndex = null; // the SCAN_RT table is changing
+	}
+
+	public void insertBBStats(PreparedStatement prepStat, int BB_ID, float sumIntensity, float maxIntensity, int pointCount) throws SQLException {
+		prepStat.setInt(1, BB_ID);
+		prepStat.setFloat(2, sumIntensity);
+		prepStat.setFloat(3, maxIntensity);
+		prepStat.setInt(4, pointCount);
+		prepStat.addBatch();
+		memoryRTree = null; // the maximum intensities of the BBs are changing
+	}
+
+	public void insertScanStats(PreparedStatement prepStat, int scanAbs, float sumIntensity, float maxIntensity, int pointCount) throws SQLException {
+		prepStat.setInt(1, scanAbs);
+		prepStat.setFloat(2, sumIntensity);
+		prepStat.setFloat(3, maxIntensity);
+		prepStat.setInt(4, pointCount);
+		prepStat.addBatch();
+		scanStatsLoaded = false; // the SCAN_STATS table is changing
 	}
 
 	public void insertSwathInfo(PreparedStatement prepStat, Float inMz, Float finMz) throws SQLException {
 		prepStat.setFloat(1, inMz);
 		prepStat.setFloat(2, finMz);
 		prepStat.addBatch();		
+		swathCatalog = null; // the SWATHS table is changing
 	}
 
 	public void insertBBsData(PreparedStatement prepStat, int BB_ID, ByteArrayOutputStream binaryBBsData) throws SQLException {
+		insertBBsData(prepStat, BB_ID, binaryBBsData.toByteArray());
+	}
+
+	public void insertBBsData(PreparedStatement prepStat, int BB_ID, byte[] binaryBBsData) throws SQLException {
+		prepStat.setInt(1, BB_ID);
+		prepStat.setBytes(2, binaryBBsData);	
+		prepStat.addBatch();
+	}
+
+	public void insertTile(PreparedStatement prepStat, int BB_ID, long offset, int length) throws SQLException {
 		prepStat.setInt(1, BB_ID);
-		prepStat.setBytes(2, binaryBBsData.toByteArray());	
+		prepStat.setLong(2, offset);
+		prepStat.setInt(3, length);
 		prepStat.addBatch();
+		tileStoreLoaded = false; // the TILES table is changing
+	}
+
+	/**
+	 * @return the file where the binary data of the BBs is saved if BuildOptions.tile_file is true
+	 */
+	public File getTileFile() {
+		return new File(filePath + ".tiles");
 	}
 
 	public void setMetadata(float lowest_mz, float highest_mz, int spectra_number) throws SQLException {
+		setMetadata(lowest_mz, highest_mz, spectra_number, 0, 0);
+	}
+
+	/**
+	 * Save the metadata of an mzRTree whose BBs are saved by a lossy codec.
+	 * 
+	 * @param mzErrorPpm			the maximum error on mz values, in ppm (0 if mz values are exact)
+	 * @param intensityRelError		the maximum relative error on intensities (0 if intensities are exact)
+	 * @throws SQLException
+	 */
+	public void setMetadata(float lowest_mz, float highest_mz, int spectra_number, float mzErrorPpm, float intensityRelError) throws SQLException {
+		saveMetadata(lowest_mz, highest_mz, spectra_number, mzErrorPpm, intensityRelError);
+		this.getConnection().commit();
+	}
+
+	/**
+	 * Replace the row of the METADATA table, without committing (see StripWriter.update_metadata(..)).
+	 */
+	protected void saveMetadata(float lowest_mz, float highest_mz, int spectra_number, float mzErrorPpm, float intensityRelError) throws SQLException {
 		Connection connTomzRTreeDB=this.getConnection();
 		Statement stat=connTomzRTreeDB.createStatement();
-		stat.executeUpdate("INSERT INTO METADATA VALUES (" +lowest_mz+ "," +highest_mz+"," +spectra_number+")");
-		connTomzRTreeDB.commit();
+		stat.executeUpdate("DELETE FROM METADATA");
 		stat.close();
+		PreparedStatement prepStat = connTomzRTreeDB.prepareStatement("INSERT INTO METADATA " +
+				"(lowest_mz, highest_mz, maxScanNumber, mzErrorPpm, intensityRelError) VALUES (?,?,?,?,?)");
+		prepStat.setFloat(1, lowest_mz);
+		prepStat.setFloat(2, highest_mz);
+		prepStat.setInt(3, spectra_number);
+		prepStat.setFloat(4, mzErrorPpm);
+		prepStat.setFloat(5, intensityRelError);
+		prepStat.executeUpdate();
+		prepStat.close();
 	}
 
 	public int getMaxScanNumber() throws SQLException {
-		return runQuery("SELECT maxScanNumber FROM METADATA").getInt("maxScanNumber");
+		return (int) getMetadata("maxScanNumber");
 	}
 
 	public float getLowestMz() throws SQLException {
-		return runQuery("SELECT lowest_mz FROM METADATA").getFloat("lowest_mz");
+		return getMetadata("lowest_mz");
 	}
 
 	public float getHighestMz() throws SQLException {
-		return runQuery("SELECT highest_mz FROM METADATA").getFloat("highest_mz");
+		return getMetadata("highest_mz");
+	}
+
+	private float getMetadata(String column) throws SQLException {
+		ResultSet res = prepare("SELECT " + column + " FROM METADATA").executeQuery();
+		try {
+			return res.getFloat(1);
+		} finally {
+			res.close();
+		}
+	}
+
+	/**
+	 * @return the maximum error on mz values, in ppm (0 if mz values are exact)
+	 */
+	public float getMzErrorPpm() throws SQLException {
+		if (!hasColumn("METADATA", "mzErrorPpm")) return 0; // built before lossy codecs existed
+		return getMetadata("mzErrorPpm");
+	}
+
+	/**
+	 * @return the maximum relative error on intensities (0 if intensities are exact)
+	 */
+	public float getIntensityRelError() throws SQLException {
+		if (!hasColumn("METADATA", "intensityRelError")) return 0; // built before lossy codecs existed
+		return getMetadata("intensityRelError");
+	}
+
+	private boolean hasColumn(String table, String column) throws SQLException {
+		ResultSet res = prepare("PRAGMA table_info(" + table + ")").executeQuery();
+		try {
+			while (res.next()) {
+				if (column.equalsIgnoreCase(res.getString("name"))) return true;
+			}
+			return false;
+		} finally {
+			res.close();
+		}
 	}
 
 	public int getMzResolution() throws SQLException {
-		return runQuery("SELECT mzResolution FROM METADATA").getInt("mzResolution");
+		return (int) getMetadata("mzResolution");
 	}
 
 	public int getSwathNumber() throws SQLException {
-		return runQuery("SELECT COUNT(*) FROM SWATHS").getInt(1);
+		return getSwathCatalog().size();
 	}
 
+	/**
+	 * @return the SWATH windows, loaded from the SWATHS table at the first call. Rows are
+	 * 			read in the order they were inserted, i.e. by window number.
+	 */
+	public SwathCatalog getSwathCatalog() throws SQLException {
+		SwathCatalog catalog = swathCatalog;
+		return catalog != null ? catalog : loadSwathCatalog();
+	}
 
-	public float[] getSwathRange(float swathPrecursor) throws SQLException {
-		float[] range = new float[]{0F,25F};
-		if(swathPrecursor != -1){
-			ResultSet res = runQuery("SELECT * FROM SWATHS " +
-					" WHERE minMz <= "+ swathPrecursor +
-					" AND maxMz >= "+ swathPrecursor);
-			res.next();
-			range[0] = res.getFloat("minMz");
-			range[1] = res.getFloat("maxMz");
+	private synchronized SwathCatalog loadSwathCatalog() throws SQLException {
+		if (swathCatalog == null) {
+			ResultSet res = prepare("SELECT minMz, maxMz FROM SWATHS ORDER BY rowid").executeQuery();
+			ArrayList<Float> minMzs = new ArrayList<Float>();
+			ArrayList<Float> maxMzs = new ArrayList<Float>();
+			while (res.next()) {
+				minMzs.add(res.getFloat("minMz"));
+				maxMzs.add(res.getFloat("maxMz"));
+			}
+			res.close();
+			swathCatalog = new SwathCatalog(ArrayUtils.toPrimitive(minMzs.toArray(new Float[minMzs.size()])),
+					ArrayUtils.toPrimitive(maxMzs.toArray(new Float[maxMzs.size()])));
+		}
+		return swathCatalog;
+	}
+
+	/**
+	 * @return the scans of each window with their retention times, loaded from the SCAN_RT
+	 * 			table at the first call
+	 */
+	public ScanIndex getScanIndex() throws SQLException {
+		ScanIndex index = scanIndex;
+		return index != null ? index : loadScanIndex();
+	}
+
+	private synchronized ScanIndex loadScanIndex() throws SQLException {
+		if (scanIndex == null) {
+			ResultSet res = prepare("SELECT COUNT(*) FROM SCAN_RT").executeQuery();
+			int scan_count = res.getInt(1);
+			res.close();
+			int[] absScanNumbers = new int[scan_count];
+			float[] retentionTimes = new float[scan_count];
+			res = prepare("SELECT scanNumberAllLevels, retTime FROM SCAN_RT ORDER BY scanNumberAllLevels").executeQuery();
+			for (int i = 0; i < scan_count && res.next(); i++) {
+				absScanNumbers[i] = res.getInt(1);
+				retentionTimes[i] = res.getFloat(2);
+			}
+			res.close();
+			scanIndex = new ScanIndex(absScanNumbers, retentionTimes, getSwathNumber());
+		}
+		return scanIndex;
+	}
+
+	/**
+	 * @return the statistics of the scans, loaded from the SCAN_STATS table at the first
+	 * 			call, or null if the database was built without statistics
+	 */
+	protected ScanStats getScanStats() throws SQLException {
+		return scanStatsLoaded ? scanStats : loadScanStats();
+	}
+
+	private synchronized ScanStats loadScanStats() throws SQLException {
+		if (!scanStatsLoaded) {
+			scanStats = null;
+			if (hasStats()) {
+				ResultSet res = prepare("SELECT COUNT(*) FROM SCAN_STATS").executeQuery();
+				int scan_count = res.getInt(1);
+				res.close();
+				int[] absScanNumbers = new int[scan_count];
+				float[] sums = new float[scan_count];
+				float[] maxs = new float[scan_count];
+				int[] counts = new int[scan_count];
+				res = prepare("SELECT scanNumberAllLevels, sumIntensity, maxIntensity, pointCount FROM SCAN_STATS").executeQuery();
+				for (int i = 0; i < scan_count && res.next(); i++) {
+					absScanNumbers[i] = res.getInt(1);
+					sums[i] = res.getFloat(2);
+					maxs[i] = res.getFloat(3);
+					counts[i] = res.getInt(4);
+				}
+				res.close();
+				scanStats = new ScanStats(getScanIndex(), getSwathNumber(), absScanNumbers, sums, maxs, counts);
+			}
+			scanStatsLoaded = true;
+		}
+		return scanStats;
+	}
+
+	/**
+	 * @return the levels of the pyramid, loaded from the PYRAMID table at the first call: 
+	 * 			element l-1 is the level l (empty if the database has no pyramid)
+	 */
+	protected PyramidLevel[] getPyramid() throws SQLException {
+		PyramidLevel[] levels = pyramid;
+		return levels != null ? levels : loadPyramid();
+	}
+
+	private synchronized PyramidLevel[] loadPyramid() throws SQLException {
+		if (pyramid == null) {
+			ArrayList<PyramidLevel> levels = new ArrayList<PyramidLevel>();
+			if (hasTable("PYRAMID")) {
+				ResultSet res = prepare("SELECT level, scanBin, mzBin, mzOrigin FROM PYRAMID ORDER BY level").executeQuery();
+				while (res.next()) {
+					levels.add(new PyramidLevel(res.getInt(1), res.getInt(2), res.getFloat(3), res.getFloat(4)));
+				}
+				res.close();
+			}
+			pyramid = levels.toArray(new PyramidLevel[levels.size()]);
+		}
+		return pyramid;
+	}
+
+	/**
+	 * @return true if the database has the statistics of its BBs and scans (it may have
+	 * 			been built before they were saved)
+	 */
+	private boolean hasStats() throws SQLException {
+		Boolean stats = hasStats;
+		if (stats == null) {
+			hasStats = stats = hasTable("BB_STATS") && hasTable("SCAN_STATS");
+		}
+		return stats;
+	}
+
+	private boolean hasTable(String table) throws SQLException {
+		PreparedStatement statement = prepare("SELECT COUNT(*) FROM sqlite_master WHERE name = ?");
+		statement.setString(1, table);
+		ResultSet res = statement.executeQuery();
+		try {
+			return res.getInt(1) > 0;
+		} finally {
 			res.close();
 		}
-		return range;
+	}
+
+	public float[] getSwathRange(float swathPrecursor) throws SQLException {
+		SwathCatalog catalog = getSwathCatalog();
+		int swath = catalog.getSwath(swathPrecursor);
+		if (swath < 0) throw new SQLException("No swath contains the precursor " + swathPrecursor);
+		return new float[]{catalog.getMinMz(swath), catalog.getMaxMz(swath)};
 	}
 
 	public float getPrecMax(float swathPrecursor) throws SQLException{
@@ -209,168 +703,990 @@ public class DBmzRTree{
 		return range[1];
 	}
 
+	/**
+	 * @return the number of the window containing swathPrecursor plus one (0 if there is none),
+	 * 			so that its scans are the ones with (scanNumberAllLevels - getcurrentSwathNumber(..)) % getSwathNumber() == 0
+	 */
 	public int getcurrentSwathNumber(float swathPrecursor) throws SQLException{
-		return runQuery("SELECT COUNT(*) FROM SWATHS"+
-				" WHERE minMz <= "+ swathPrecursor).getInt(1);
+		return getSwathCatalog().getSwath(swathPrecursor) + 1;
 	}
 
+	/**
+	 * @return the BBs intersecting the range, as (minScan, maxScan, minMz, maxMz, BBsData). 
+	 * 			The result set is valid until the next call: close it once it has been read.
+	 */
 	public ResultSet getBBsList(int scan_i, int scan_f, float mz_i, float mz_f, float mzPrecursor) throws SQLException {
-		return runQuery("SELECT minScan, maxScan, minMz, maxMz, BBsData FROM BBs, DATA"+
-				" WHERE BBs_ID = ID "+
-				" AND minScan <=" +scan_f+" AND maxScan>="+ scan_i+" AND minMz<="+ mz_f+" AND maxMz>=" + mz_i + " AND minMzPrec<="+ mzPrecursor+" AND maxMzPrec>" + mzPrecursor + " ORDER BY minMz"); // + " ORDER BY BBs_ID"); // sorting not needed because of the data mapped to the matrix
+		return getBBsList(scan_i, scan_f, mz_i, mz_f, getSwathCatalog().getSwath(mzPrecursor));
+	}
+
+	private ResultSet getBBsList(int scan_i, int scan_f, float mz_i, float mz_f, int swath) throws SQLException {
+		PreparedStatement statement = prepare(BBS_LIST_QUERY);
+		statement.setInt(1, scan_f);
+		statement.setInt(2, scan_i);
+		statement.setFloat(3, mz_f);
+		statement.setFloat(4, mz_i);
+		setSwathBounds(statement, 5, swath);
+		return statement.executeQuery();
+	}
+
+	/**
+	 * Bind the bounds of a window to the parameters index and index + 1 of a query selecting
+	 * the BBs whose precursor range is exactly the range of the window: windows can overlap, 
+	 * and a precursor inside the window can be inside other windows too.
+	 * 
+	 * @param swath		the window, -1 to select no BBs
+	 */
+	private void setSwathBounds(PreparedStatement statement, int index, int swath) throws SQLException {
+		SwathCatalog catalog = getSwathCatalog();
+		if (swath < 0) {
+			// no window has these bounds
+			statement.setFloat(index, 1);
+			statement.setFloat(index + 1, 0);
+		} else {
+			statement.setFloat(index, catalog.getMinMz(swath));
+			statement.setFloat(index + 1, catalog.getMaxMz(swath));
+		}
+	}
+
+	/**
+	 * @return the BBs of a window intersecting the range, with their ID and coordinates, sorted by minMz
+	 */
+	protected ArrayList<BBnode> getBBs(int scan_i, int scan_f, float mz_i, float mz_f, int swath) throws SQLException {
+		return getBBs(scan_i, scan_f, mz_i, mz_f, swath, 0);
+	}
+
+	/**
+	 * @param min_intensity		BBs whose peaks are all below this intensity are skipped (if
+	 * 							the database has the statistics of the BBs)
+	 * @return the BBs intersecting the range, with their ID and coordinates, sorted by minMz;
+	 * 			if min_intensity is positive, with their maximum intensity too
+	 */
+	protected ArrayList<BBnode> getBBs(int scan_i, int scan_f, float mz_i, float mz_f, int swath, float min_intensity) throws SQLException {
+		boolean prune = min_intensity > 0 && hasStats();
+		MemoryRTree rtree = getMemoryRTree();
+		if (rtree != null) {
+			ArrayList<BBnode> bbs = rtree.search(swath, scan_i, scan_f, mz_i, mz_f);
+			if (prune) {
+				ArrayList<BBnode> above = new ArrayList<BBnode>(bbs.size());
+				for (BBnode bb : bbs) {
+					if (bb.max_intensity >= min_intensity) above.add(bb);
+				}
+				bbs = above;
+			}
+			return bbs;
+		}
+		PreparedStatement statement = prepare(prune ? BBS_ABOVE_QUERY : BBS_INFO_QUERY);
+		statement.setInt(1, scan_f);
+		statement.setInt(2, scan_i);
+		statement.setFloat(3, mz_f);
+		statement.setFloat(4, mz_i);
+		setSwathBounds(statement, 5, swath);
+		if (prune) statement.setFloat(7, min_intensity);
+		ResultSet res = statement.executeQuery();
+		ArrayList<BBnode> bbs = new ArrayList<BBnode>();
+		while (res.next()) {
+			BBnode bb = new BBnode();
+			bb.id = res.getInt(1);
+			bb.min_rt = res.getInt(2);
+			bb.max_rt = res.getInt(3);
+			bb.min_mz = res.getFloat(4);
+			bb.max_mz = res.getFloat(5);
+			if (prune) bb.max_intensity = res.getFloat(6);
+			bbs.add(bb);
+		}
+		res.close();
+		return bbs;
+	}
+
+	/**
+	 * Forget the state loaded from the database (the SWATH windows, the scan index, the
+	 * statistics, the pyramid, the BBs loaded in memory and the mapped file of the BBs), 
+	 * so that it is loaded again: queries then see the strips committed since it was 
+	 * loaded, e.g. by an mzRTree whose scans are being appended (see MzRTree.append_scan(..)).
+	 * Queries running during the call use the previous state. The tile cache is kept, since
+	 * committed BBs do not change.
+	 */
+	public synchronized void refresh() throws SQLException {
+		swathCatalog = null;
+		scanIndex = null;
+		scanStatsLoaded = false;
+		hasStats = null;
+		pyramid = null;
+		memoryRTree = null;
+		tileStoreLoaded = false;
+		if (readOnly) {
+			// the shared state is loaded again before threads use it, as in the constructor
+			getSwathCatalog();
+			getScanIndex();
+			getTileStore();
+		}
+	}
+
+	/**
+	 * @return the binary data of a BB, from position() to limit(), null if there is no BB 
+	 * 			with this ID. If the BBs are saved in a file, the buffer is a view of the
+	 * 			mapped file.
+	 */
+	protected ByteBuffer getBBData(int bb_id) throws SQLException {
+		TileStore store = getTileStore();
+		if (store != null) {
+			return store.get(bb_id);
+		}
+		PreparedStatement statement = prepare(BB_DATA_QUERY);
+		statement.setInt(1, bb_id);
+		ResultSet res = statement.executeQuery();
+		try {
+			return res.next() ? ByteBuffer.wrap(res.getBytes(1)) : null;
+		} finally {
+			res.close();
+		}
+	}
+
+	/**
+	 * @return the file of the BBs mapped in memory, loaded at the first call, or null if
+	 * 			the BBs are saved in the DATA table
+	 */
+	protected TileStore getTileStore() throws SQLException {
+		return tileStoreLoaded ? tileStore : loadTileStore();
+	}
+
+	private synchronized TileStore loadTileStore() throws SQLException {
+		if (!tileStoreLoaded) {
+			tileStore = null;
+			// built before the file of the BBs existed?
+			if (hasTable("TILES")) {
+				ResultSet res = prepare("SELECT COUNT(*), MAX(BBs_ID) FROM TILES").executeQuery();
+				int tile_count = res.getInt(1);
+				int max_id = res.getInt(2);
+				res.close();
+				if (tile_count > 0) {
+					long[] offsets = new long[max_id + 1];
+					int[] lengths = new int[max_id + 1];
+					Arrays.fill(lengths, -1);
+					res = prepare("SELECT BBs_ID, tileOffset, tileLength FROM TILES").executeQuery();
+					while (res.next()) {
+						offsets[res.getInt(1)] = res.getLong(2);
+						lengths[res.getInt(1)] = res.getInt(3);
+					}
+					res.close();
+					try {
+						tileStore = new TileStore(getTileFile(), offsets, lengths);
+					} catch (IOException e) {
+						throw new SQLException("The file of the BBs cannot be mapped: " + e.getMessage(), e);
+					}
+				}
+			}
+			tileStoreLoaded = true;
+		}
+		return tileStore;
+	}
+
+	/**
+	 * Visit the peaks of a BB (found by getBBs(..)) in a range, as TileCodec.decode(..) does. 
+	 * The BB is read from the tile cache, if any.
+	 */
+	protected void decode(BBnode bb, int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor) throws SQLException {
+		TileCache cache = tileCache;
+		if (cache == null) {
+			ByteBuffer data = getBBData(bb.id);
+			if (data != null) {
+				TileCodecs.decode(data, bb.min_rt, bb.max_rt, scan_i, scan_f, mzi, mzf, visitor);
+			}
+			return;
+		}
+		DecodedTile tile = cache.get(bb.id);
+		if (tile == null) {
+			ByteBuffer data = getBBData(bb.id);
+			if (data == null) return;
+			tile = DecodedTile.decode(data, bb.min_rt, bb.max_rt, cache.off_heap);
+			cache.put(bb.id, tile);
+		}
+		tile.visit(scan_i, scan_f, mzi, mzf, visitor);
+	}
+
+	/**
+	 * Keep the decoded BBs in a cache, so that BBs read again by the following queries are
+	 * not decoded again.
+	 * 
+	 * @param cache		the cache (it can be shared by several mzRTrees opened on the same 
+	 * 					database), or null to decode BBs at each query
+	 */
+	public void setTileCache(TileCache cache) {
+		this.tileCache = cache;
+	}
+
+	public TileCache getTileCache() {
+		return tileCache;
+	}
+
+	/**
+	 * Load the BBs table in an r-tree in memory, so that BBs are found without querying 
+	 * SQLite, which only reads the data of the BBs by ID. The r-tree is loaded by this call
+	 * and shared by all the threads.
+	 * 
+	 * @param enabled	if false, the r-tree is released and BBs are found through the BBs table
+	 * @throws SQLException
+	 */
+	public void setMemoryRTree(boolean enabled) throws SQLException {
+		useMemoryRTree = enabled;
+		memoryRTree = null;
+		if (enabled) getMemoryRTree();
+	}
+
+	/**
+	 * @return the BBs table loaded in memory, null if it is not used
+	 */
+	protected MemoryRTree getMemoryRTree() throws SQLException {
+		if (!useMemoryRTree) return null;
+		MemoryRTree rtree = memoryRTree;
+		return rtree != null ? rtree : loadMemoryRTree();
+	}
+
+	private synchronized MemoryRTree loadMemoryRTree() throws SQLException {
+		if (memoryRTree == null) {
+			SwathCatalog catalog = getSwathCatalog();
+			ArrayList<ArrayList<BBnode>> swaths = new ArrayList<ArrayList<BBnode>>(catalog.size());
+			for (int swath = 0; swath < catalog.size(); swath++) {
+				swaths.add(new ArrayList<BBnode>());
+			}
+			boolean stats = hasStats();
+			ResultSet res = prepare("SELECT ID, minScan, maxScan, minMz, maxMz, minMzPrec, maxMzPrec" +
+					(stats ? ", maxIntensity FROM BBs LEFT JOIN BB_STATS ON BBs_ID = ID" : " FROM BBs")).executeQuery();
+			while (res.next()) {
+				// the precursor range of a BB is the range of its window
+				int swath = catalog.getSwath(res.getFloat(6), res.getFloat(7));
+				if (swath < 0) continue;
+				BBnode bb = new BBnode();
+				bb.id = res.getInt(1);
+				bb.min_rt = res.getInt(2);
+				bb.max_rt = res.getInt(3);
+				bb.min_mz = res.getFloat(4);
+				bb.max_mz = res.getFloat(5);
+				if (stats && res.getObject(8) != null) bb.max_intensity = res.getFloat(8);
+				swaths.get(swath).add(bb);
+			}
+			res.close();
+			memoryRTree = new MemoryRTree(swaths);
+		}
+		return memoryRTree;
 	}
 
+	/**
+	 * @param swathNumber	the window plus one (see getcurrentSwathNumber(..))
+	 * 
+	 * @return the first and the last scan number (as in the mzXML file) of the window in 
+	 * 			[rt_i, rt_f], {0, 0} if there is none
+	 */
 	public int[] getScanfromRT(float rt_i, float rt_f, int swathNumber) throws SQLException {
-		String query= "SELECT MIN(scanNumberAllLevels) AS scan_i, MAX(scanNumberAllLevels) AS scan_f FROM SCAN_RT"+
-				" WHERE retTime >=" + rt_i + " AND retTime <=" +rt_f + 
-				" AND ((scanNumberAllLevels - " + swathNumber + ") % " + getSwathNumber() + " =0 ) " +
-				"ORDER BY scanNumberAllLevels";
-		ResultSet res=runQuery(query);
-		System.out.println(query);
-		int[] absScanRange = new int[2];
-		res.next();
-		absScanRange[0]=res.getInt("scan_i");
-		absScanRange[1]=res.getInt("scan_f");
-		System.out.println(absScanRange[0]);
-		System.out.println(absScanRange[1]);
-		return absScanRange;	
+		ScanIndex index = getScanIndex();
+		int[] scans = index.getScanRange(swathNumber - 1, rt_i, rt_f);
+		if (scans == null) return new int[2];
+		return new int[]{index.getAbsScanNumber(swathNumber - 1, scans[0]), index.getAbsScanNumber(swathNumber - 1, scans[1])};
 	}
 
 	public float[] getRTsInRange(float rt_i, float rt_f, float mzPrecursor) throws SQLException {
-		float precMax= getPrecMax(mzPrecursor);
-		int currentSwathNumber= getcurrentSwathNumber(mzPrecursor);
-		String query= "SELECT retTime FROM SCAN_RT"+
-				" WHERE retTime >=" + rt_i + " AND retTime <=" +rt_f + 
-				" AND (scanNumberAllLevels % " + getSwathNumber() + " == " + currentSwathNumber + " ) " +
-				" ORDER BY retTime";
-		ResultSet res=runQuery(query);
-		ArrayList<Float> rTs=new ArrayList<Float>();
-		while (res.next()){
-			rTs.add(res.getFloat("retTime"));
-		}
-		return ArrayUtils.toPrimitive(rTs.toArray(new Float[rTs.size()]));
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		if (swath < 0) return new float[0];
+		return getScanIndex().getRTs(swath, rt_i, rt_f);
 	}
 
+	/**
+	 * Run an ad hoc query. The statement is not reused: queries run many times go through
+	 * prepare(..).
+	 */
 	public ResultSet runQuery(String query) throws SQLException{
 		Statement stat = this.getConnection().createStatement();
 		return stat.executeQuery(query); 
 	}
 
-	private ResultSet runQuery(String query, int resultSetType, int resultSetConcurrency) throws SQLException{
-		Statement stat = null;
-		try{
-			stat=getConnection().createStatement(resultSetType, resultSetConcurrency);
-			return stat.executeQuery(query);
-		} catch(SQLException ex){
-			throw ex;
-		}
-	}
-
+	/**
+	 * Thread-safe if the mzRTree was opened read-only.
+	 */
 	public ArrayList<MzIntList> range_query(float rt_i, float rt_f, float mz_i, float mz_f, float mzPrecursor) throws MzRTreeException, SQLException {
-		// access through retention times
-		float precMax= getPrecMax(mzPrecursor);
-		int currentSwathNumber= getcurrentSwathNumber(mzPrecursor);
+		// access through retention times: BBs use the scan numbers relative to the window
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+		return range_query(scans[0], scans[1], mz_i, mz_f, mzPrecursor);
+	}
 
-		int[] scans = getScanfromRT( rt_i,  rt_f,currentSwathNumber);
-		if (scans[0] <= 0 || scans[1] <= 0)
-			throw(new MzRTreeException("Scan # is <=0 : " + "scans[0] = " + scans[0] + "scans[1] = " +scans[1] ));
+	/**
+	 * The same query of range_query(rt_i, rt_f, mz_i, mz_f, mzPrecursor), whose result is 
+	 * saved in primitive arrays (see PeakMatrix).
+	 * 
+	 * @param result	the matrix where the result is saved, or null to create a new one
+	 * @return result, or the new matrix
+	 */
+	public PeakMatrix range_query(float rt_i, float rt_f, float mz_i, float mz_f, float mzPrecursor, PeakMatrix result) throws MzRTreeException, SQLException {
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+		return range_query(scans[0], scans[1], mz_i, mz_f, mzPrecursor, result);
+	}
 
-		return range_query(scans[0]-1, scans[1]-1, mz_i, mz_f, mzPrecursor);
+	/**
+	 * The same query of range_query(rt_i, rt_f, mz_i, mz_f, mzPrecursor), whose peaks are 
+	 * pushed to a visitor (see range_query(.., PeakVisitor)).
+	 */
+	public void range_query(float rt_i, float rt_f, float mz_i, float mz_f, float mzPrecursor, PeakVisitor visitor) throws MzRTreeException, SQLException {
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+		range_query(scans[0], scans[1], mz_i, mz_f, mzPrecursor, visitor);
 	}
 
+	/**
+	 * @return the first and the last scan (relative to the window of mzPrecursor) in [rt_i, rt_f]
+	 * @throws MzRTreeException if no window contains mzPrecursor or no scan is in the range
+	 */
+	private int[] getScanRange(float rt_i, float rt_f, float mzPrecursor) throws MzRTreeException, SQLException {
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		if (swath < 0)
+			throw(new MzRTreeException("No swath contains the precursor " + mzPrecursor));
+
+		int[] scans = getScanIndex().getScanRange(swath, rt_i, rt_f);
+		if (scans == null)
+			throw(new MzRTreeException("No scan in the retention time range [" + rt_i + ", " + rt_f + "]"));
+		return scans;
+	}
 
-	public ArrayList<MzIntList> range_query(int scan_i, int scan_f, float mzi, float mzf, float mzPrecursor) throws MzRTreeException, SQLException {
-		// access through scan numbers (relative to the MS level) 
 
-		ResultSet listBBs = this.getBBsList( scan_i,  scan_f,  mzi, mzf, mzPrecursor);
+	/**
+	 * Extract many targets at once, e.g. all the transitions of a targeted analysis. Each
+	 * BB is read and decoded once even if it contains peaks of several targets.
+	 * Thread-safe if the mzRTree was opened read-only.
+	 * 
+	 * @return for each target, in the same order, the same list returned by 
+	 * 			range_query(rt_i, rt_f, mz_i, mz_f, precursor); an empty list if no window
+	 * 			contains the precursor or no scan is in the retention time range.
+	 */
+	public ArrayList<ArrayList<MzIntList>> range_query(List<Target> targets) throws SQLException {
+		return new BatchQuery(this).run(targets);
+	}
 
-		int buffer_pointer = 0;
+	/**
+	 * Thread-safe if the mzRTree was opened read-only.
+	 */
+	public ArrayList<MzIntList> range_query(final int scan_i, int scan_f, float mzi, float mzf, float mzPrecursor) throws MzRTreeException, SQLException {
+		// access through scan numbers (relative to the MS level) 
 
-		ArrayList<DBmzRTree.MzIntList> matrix = new ArrayList<DBmzRTree.MzIntList>(scan_f - scan_i+1);
+		final ArrayList<DBmzRTree.MzIntList> matrix = new ArrayList<DBmzRTree.MzIntList>(scan_f - scan_i+1);
 		for (int i=0; i<(scan_f - scan_i+1); i++){
 			matrix.add(new MzIntList());
 		}
 
-		float data;
+		//copy the peaks in the row of their scan
+		range_query(scan_i, scan_f, mzi, mzf, mzPrecursor, new PeakVisitor() {
+			@Override
+			public void visit(int scan, float mz, float intensity) {
+				matrix.get(scan - scan_i).add(mz, intensity);
+			}
+		});
+		return matrix;
+	}
 
-		// some variables for SPARSE case
-		int tmp2 = 0, num_byte, col, row;
-		float rel_mz_idx, curr_mz;
-		// some variables for DENSE case
-		int num_col_mzs, start_scan, end_scan, start_mz, end_mz, skipped_mzs, skipped_scans, idx_rel_mzi, idx_rel_mzf, idx_rel_scan_i, idx_rel_scan_f,min_scan_BB,max_scan_BB, min_mz_BB, max_mz_BB, num_BB;
-		// General variables
-		int i, j, r ; //, idx_curr_byte;
+	/**
+	 * The same query of range_query(scan_i, scan_f, mzi, mzf, mzPrecursor), whose result is 
+	 * saved in primitive arrays. Passing the same matrix to each query avoids allocating
+	 * memory for the result.
+	 * 
+	 * @param result	the matrix where the result is saved, or null to create a new one
+	 * @return result, or the new matrix
+	 */
+	public PeakMatrix range_query(int scan_i, int scan_f, float mzi, float mzf, float mzPrecursor, PeakMatrix result) throws MzRTreeException, SQLException {
+		if (result == null) result = new PeakMatrix();
+		result.reset(scan_i, scan_f - scan_i + 1);
+		range_query(scan_i, scan_f, mzi, mzf, mzPrecursor, result.appender);
+		return result;
+	}
 
-		int counter_iter = 0;
-		int writtenValues = 0;
+	/**
+	 * Push the peaks whose scan is in [scan_i, scan_f] and whose mz value is in (mzi, mzf] 
+	 * to a visitor, as soon as they are decoded: no result is stored. The peaks of a scan 
+	 * are visited by increasing mz, but peaks of different scans can be interleaved.
+	 * Thread-safe if the mzRTree was opened read-only (the visitor is called by the calling
+	 * thread).
+	 */
+	public void range_query(int scan_i, int scan_f, float mzi, float mzf, float mzPrecursor, PeakVisitor visitor) throws MzRTreeException, SQLException {
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		if (swath < 0) return;
+		swath_query(swath, scan_i, scan_f, mzi, mzf, visitor);
+	}
 
+	/**
+	 * Push the peaks of a range of a window to a visitor (see range_query(scan_i, scan_f, 
+	 * mzi, mzf, mzPrecursor, visitor)).
+	 */
+	protected void swath_query(int swath, int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor) throws SQLException {
+		// the join of BBs and DATA is used only if BBs are decoded at each query, saved in DATA
+		// and found through the BBs table
+		if (tileCache != null || getTileStore() != null || getMemoryRTree() != null) {
+			for (BBnode bb : getBBs(scan_i, scan_f, mzi, mzf, swath)) {
+				decode(bb, scan_i, scan_f, mzi, mzf, visitor);
+			}
+			return;
+		}
+
+		ResultSet listBBs = this.getBBsList( scan_i,  scan_f,  mzi, mzf, swath);
+		int min_scan_BB, max_scan_BB;
 
 		while (listBBs.next()) {
-			counter_iter +=1;
-			//			System.out.println("just read BB # " + counter_iter);
 			// read the BB's coordinates
 			min_scan_BB=listBBs.getInt("minScan");
 			max_scan_BB=listBBs.getInt("maxScan");
-			min_mz_BB = (int) listBBs.getFloat("minMz"); //last
-			max_mz_BB = (int) listBBs.getFloat("maxMz"); //last
-			num_BB = (int) listBBs.getRow();
 			//load the BB into the buffer
 			byte[] buffer=listBBs.getBytes("BBsData");
-			buffer_pointer = 0;
-			int idx_curr_byte = 0;
 
-			// how is the BB saved?
-			if (Utils.equals_size4(buffer, SPARSE_MATRIX)) { 
-				//				System.out.println("SPARSE!!!!");
+			// how is the BB saved? the codec is identified by the first 4 bytes
+			TileCodecs.decode(buffer, min_scan_BB, max_scan_BB, scan_i, scan_f, mzi, mzf, visitor);
+		}
+		listBBs.close();
+	}
 
-				buffer_pointer += 4; //MzRTree.SPARSE_MATRIX has size 4 bytes 
+	/**
+	 * Push the peaks of a range whose intensity is at least min_intensity to a visitor (see 
+	 * range_query(scan_i, scan_f, mzi, mzf, mzPrecursor, visitor)). BBs whose peaks are all
+	 * below min_intensity are skipped without being read, if the database has the 
+	 * statistics of its BBs.
+	 * Thread-safe if the mzRTree was opened read-only.
+	 */
+	public void range_query(int scan_i, int scan_f, float mzi, float mzf, float mzPrecursor, final float min_intensity, final PeakVisitor visitor) throws MzRTreeException, SQLException {
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		if (swath < 0) return;
+		PeakVisitor above = new PeakVisitor() {
+			@Override
+			public void visit(int scan, float mz, float intensity) {
+				if (intensity >= min_intensity) visitor.visit(scan, mz, intensity);
+			}
+		};
+		for (BBnode bb : getBBs(scan_i, scan_f, mzi, mzf, swath, min_intensity)) {
+			decode(bb, scan_i, scan_f, mzi, mzf, above);
+		}
+	}
 
-				//from which rt do we start?
-				start_scan = scan_i >= min_scan_BB ? scan_i : min_scan_BB; 
-				//in which rt do we finish?
-				end_scan = scan_f <= max_scan_BB ? scan_f: max_scan_BB;
+	public void range_query(float rt_i, float rt_f, float mz_i, float mz_f, float mzPrecursor, float min_intensity, PeakVisitor visitor) throws MzRTreeException, SQLException {
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+		range_query(scans[0], scans[1], mz_i, mz_f, mzPrecursor, min_intensity, visitor);
+	}
 
-				//the first ignore_rt rows of the BB are not of interest
-				skipped_scans = start_scan - min_scan_BB;
+	/**
+	 * Find the k most intense peaks of a range. BBs are decoded by decreasing maximum 
+	 * intensity, and the query stops as soon as the following BBs cannot contain a peak
+	 * more intense than the k-th one found so far: usually only a few BBs are read, 
+	 * whatever the size of the range. If the database has no statistics of its BBs, all 
+	 * the BBs of the range are read.
+	 * Thread-safe if the mzRTree was opened read-only.
+	 * 
+	 * @return at most k peaks, by decreasing intensity
+	 */
+	public TopPeaks top_k(int k, int scan_i, int scan_f, float mzi, float mzf, float mzPrecursor) throws MzRTreeException, SQLException {
+		if (k <= 0) throw new IllegalArgumentException("k must be positive: " + k);
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		if (swath < 0)
+			throw(new MzRTreeException("No swath contains the precursor " + mzPrecursor));
+
+		// all the peaks have positive intensities: no BB is skipped, but their maximum 
+		// intensities are read
+		ArrayList<BBnode> bbs = getBBs(scan_i, scan_f, mzi, mzf, swath, Float.MIN_VALUE);
+		Collections.sort(bbs, new Comparator<BBnode>() {
+			@Override
+			public int compare(BBnode a, BBnode b) {
+				return Float.compare(b.max_intensity, a.max_intensity);
+			}
+		});
+		PeakHeap heap = new PeakHeap(k);
+		for (BBnode bb : bbs) {
+			if (heap.isFull() && bb.max_intensity <= heap.min()) break;
+			decode(bb, scan_i, scan_f, mzi, mzf, heap);
+		}
+		return heap.drain(getScanIndex(), swath);
+	}
 
-				//in which row of the output matrix do we start to copy the current (part of) BB?
-				idx_rel_scan_i = start_scan - scan_i;
-				//in which row of the output matrix do we finish to copy the current (part of) BB?
-				idx_rel_scan_f = end_scan - scan_i;
+	public TopPeaks top_k(int k, float rt_i, float rt_f, float mz_i, float mz_f, float mzPrecursor) throws MzRTreeException, SQLException {
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+		return top_k(k, scans[0], scans[1], mz_i, mz_f, mzPrecursor);
+	}
 
-				i = 0;
-				//jump the first bb_rti rows since they do not contain interesting data
-				while (i < skipped_scans) {
-					buffer_pointer += 4 + Utils.bytesToInt(buffer, buffer_pointer); // length of a scan (spectrum)
-					i++;
-				}
+	/**
+	 * Draw an overview of a range in a matrix of rows x columns pixels: the cell m[i][j] is 
+	 * the sum of the intensities of the peaks whose retention time falls in the i-th of 
+	 * rows equal slices of [rt_i, rt_f] and whose mz value falls in the j-th of columns 
+	 * equal slices of (mz_i, mz_f]. The peaks are read from the coarsest level of the pyramid
+	 * (see BuildOptions.pyramid_levels) whose bins are not larger than a pixel, or from the 
+	 * BBs at full resolution if there is none: the peaks of a level are the centers of its 
+	 * bins, and its rows placed at the retention time of their first scan (see raster(..)).
+	 * Thread-safe if the mzRTree was opened read-only.
+	 */
+	public Matrix overview(float rt_i, float rt_f, float mz_i, float mz_f, float mzPrecursor, int rows, int columns) throws MzRTreeException, SQLException {
+		if (rows <= 0 || columns <= 0) throw new IllegalArgumentException("Invalid size: " + rows + " x " + columns);
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+
+		// the coarsest level whose bins fit in a pixel
+		float scans_per_row = (float) (scans[1] - scans[0] + 1) / rows;
+		float mz_per_column = (mz_f - mz_i) / columns;
+		PyramidLevel level = null;
+		for (PyramidLevel candidate : getPyramid()) {
+			if (candidate.scan_bin <= scans_per_row && candidate.mz_bin <= mz_per_column) level = candidate;
+		}
+		return rasterize(level, swath, scans[0], scans[1], rt_i, rt_f, mz_i, mz_f, rows, columns, Chromatogram.SUM);
+	}
 
-				//only scan_f-scan_i rows of the BB are of interest
-				for (row = idx_rel_scan_i; row <= idx_rel_scan_f; row++) {
-					//					System.out.println(" welcome @scan# " + (start_scan+row) + " c/o BB# " + num_BB);
-					num_byte = Utils.bytesToInt(buffer, buffer_pointer);
-					buffer_pointer += 4;
-					tmp2 = buffer_pointer + num_byte;
-					while (buffer_pointer < tmp2) {
-						curr_mz = Float.intBitsToFloat(Utils.bytesToInt(buffer, buffer_pointer));
-						buffer_pointer += 4;
-						data = Float.intBitsToFloat(Utils.bytesToInt(buffer, buffer_pointer));
-						buffer_pointer += 4;
-						rel_mz_idx = curr_mz - mzi;
-						//copy only intensities of the mz values in the range of interest
-						if (rel_mz_idx > 0 && curr_mz <= mzf) {
-							matrix.get(row).mzs.add((float) curr_mz);
-							matrix.get(row).intensities.add((float) data);
+	/**
+	 * Draw a range in a matrix of rows x columns pixels: the cell m[i][j] aggregates the 
+	 * intensities of the peaks whose retention time falls in the i-th of rows equal slices
+	 * of [rt_i, rt_f] and whose mz value falls in the j-th of columns equal slices of 
+	 * (mz_i, mz_f]. The peaks are read at full resolution and written directly in the matrix.
+	 * If the mzRTree was opened read-only, the BBs are decoded by several threads, each
+	 * one drawing in its own matrix of rows x columns pixels.
+	 * 
+	 * @param aggregation	Chromatogram.SUM or Chromatogram.MAX
+	 */
+	public Matrix raster(float rt_i, float rt_f, float mz_i, float mz_f, float mzPrecursor, int rows, int columns, int aggregation) throws MzRTreeException, SQLException {
+		if (rows <= 0 || columns <= 0) throw new IllegalArgumentException("Invalid size: " + rows + " x " + columns);
+		if (aggregation != Chromatogram.SUM && aggregation != Chromatogram.MAX) 
+			throw new IllegalArgumentException("Unknown aggregation: " + aggregation);
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+		return rasterize(null, swath, scans[0], scans[1], rt_i, rt_f, mz_i, mz_f, rows, columns, aggregation);
+	}
 
-						}
+	/**
+	 * Draw the peaks of a range of a window in a matrix (see raster(..) and overview(..)).
+	 * The BBs of the range are searched once and each of them is decoded once: in 
+	 * read-only mode, the tasks take whole BBs and draw them in their own matrix, and the 
+	 * matrices are then merged.
+	 * 
+	 * @param level		the level of the pyramid to read, null for the BBs at full resolution
+	 */
+	private Matrix rasterize(final PyramidLevel level, int swath, int scan_i, int scan_f, float rt_i, float rt_f,
+			final float mz_i, final float mz_f, final int rows, final int columns, final int aggregation) throws MzRTreeException, SQLException {
+		Matrix matrix = new Matrix();
+		matrix.m = new float[rows][columns];
+
+		// the rows of the level in the range and their pixel row
+		int scan_bin = level == null ? 1 : level.scan_bin;
+		final int first_row = scan_i / scan_bin;
+		final int last_row = scan_f / scan_bin;
+		ScanIndex index = getScanIndex();
+		final int[] pixel_rows = new int[last_row - first_row + 1];
+		float rt_range = rt_f > rt_i ? rt_f - rt_i : 1;
+		for (int row = first_row; row <= last_row; row++) {
+			float rt = index.getRT(swath, Math.max(row * scan_bin, scan_i));
+			pixel_rows[row - first_row] = Math.min(Math.max((int) ((rt - rt_i) / rt_range * rows), 0), rows - 1);
+		}
+		final ArrayList<BBnode> bbs = getRasterBBs(level, swath, first_row, last_row, mz_i, mz_f);
+
+		int num_tasks = readOnly ? Math.min(bbs.size(), Runtime.getRuntime().availableProcessors()) : 1;
+		if (num_tasks <= 1) {
+			PeakVisitor pixels = new Pixels(matrix.m, first_row, pixel_rows, mz_i, mz_f, aggregation);
+			for (BBnode bb : bbs) {
+				rasterize(level, bb, first_row, last_row, mz_i, mz_f, pixels);
+			}
+			return matrix;
+		}
+		// each task takes the next BB not drawn yet, so that tasks end together
+		final AtomicInteger next_bb = new AtomicInteger();
+		final float[][][] grids = new float[num_tasks][][];
+		grids[0] = matrix.m;
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < num_tasks; t++) {
+			final int task = t;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					if (grids[task] == null) grids[task] = new float[rows][columns];
+					PeakVisitor pixels = new Pixels(grids[task], first_row, pixel_rows, mz_i, mz_f, aggregation);
+					for (int i = next_bb.getAndIncrement(); i < bbs.size(); i = next_bb.getAndIncrement()) {
+						rasterize(level, bbs.get(i), first_row, last_row, mz_i, mz_f, pixels);
+					}
+					return null;
+				}
+			});
+		}
+		invoke(tasks);
+		for (int t = 1; t < num_tasks; t++) {
+			for (int i = 0; i < rows; i++) {
+				float[] row = matrix.m[i];
+				float[] other = grids[t][i];
+				for (int j = 0; j < columns; j++) {
+					if (aggregation == Chromatogram.MAX) {
+						if (other[j] > row[j]) row[j] = other[j];
+					} else {
+						row[j] += other[j];
 					}
 				}
 			}
-
 		}
 		return matrix;
 	}
 
+	/**
+	 * @return the BBs of a level intersecting the rows [first_row, last_row] of a window
+	 * 			(only their ID and their rows are read for the levels of the pyramid)
+	 */
+	private ArrayList<BBnode> getRasterBBs(PyramidLevel level, int swath, int first_row, int last_row, float mz_i, float mz_f) throws SQLException {
+		if (level == null) {
+			return getBBs(first_row, last_row, mz_i, mz_f, swath);
+		}
+		PreparedStatement statement = prepare("SELECT ID, minScan, maxScan FROM " + bbsTable(level.level) +
+				" WHERE minScan <= ? AND maxScan >= ? AND minMz <= ? AND maxMz >= ? AND minMzPrec = ? AND maxMzPrec = ?");
+		statement.setInt(1, last_row);
+		statement.setInt(2, first_row);
+		statement.setFloat(3, mz_f);
+		statement.setFloat(4, mz_i);
+		setSwathBounds(statement, 5, swath);
+		ArrayList<BBnode> bbs = new ArrayList<BBnode>();
+		ResultSet res = statement.executeQuery();
+		while (res.next()) {
+			BBnode bb = new BBnode();
+			bb.id = res.getInt(1);
+			bb.min_rt = res.getInt(2);
+			bb.max_rt = res.getInt(3);
+			bbs.add(bb);
+		}
+		res.close();
+		return bbs;
+	}
+
+	/**
+	 * Push the peaks of a BB of a level in the rows [first_row, last_row] to a visitor.
+	 */
+	private void rasterize(PyramidLevel level, BBnode bb, int first_row, int last_row, float mz_i, float mz_f, PeakVisitor pixels) throws SQLException {
+		if (level == null) {
+			decode(bb, first_row, last_row, mz_i, mz_f, pixels);
+			return;
+		}
+		PreparedStatement statement = prepare("SELECT BBsData FROM " + dataTable(level.level) + " WHERE BBs_ID = ?");
+		statement.setInt(1, bb.id);
+		ResultSet res = statement.executeQuery();
+		try {
+			if (res.next()) {
+				TileCodecs.decode(res.getBytes(1), bb.min_rt, bb.max_rt, first_row, last_row, mz_i, mz_f, pixels);
+			}
+		} finally {
+			res.close();
+		}
+	}
+
+	/**
+	 * Writes the peaks in the cells of a matrix, used by a single thread.
+	 */
+	private static class Pixels implements PeakVisitor {
+		private final float[][] m;
+		private final int first_row;
+		private final int[] pixel_rows;
+		private final float mz_i;
+		private final float columns_per_mz;
+		private final int last_column;
+		private final boolean max;
+
+		private Pixels(float[][] m, int first_row, int[] pixel_rows, float mz_i, float mz_f, int aggregation) {
+			this.m = m;
+			this.first_row = first_row;
+			this.pixel_rows = pixel_rows;
+			this.mz_i = mz_i;
+			this.last_column = m[0].length - 1;
+			this.columns_per_mz = m[0].length / (mz_f - mz_i);
+			this.max = aggregation == Chromatogram.MAX;
+		}
+
+		@Override
+		public void visit(int scan, float mz, float intensity) {
+			float[] row = m[pixel_rows[scan - first_row]];
+			int column = Math.min((int) ((mz - mz_i) * columns_per_mz), last_column);
+			if (max) {
+				if (intensity > row[column]) row[column] = intensity;
+			} else {
+				row[column] += intensity;
+			}
+		}
+	}
+
+	/**
+	 * Extract the chromatogram of a range: the intensities of the peaks of each scan are 
+	 * aggregated while the BBs are decoded, so that peaks are never stored.
+	 * Thread-safe if the mzRTree was opened read-only.
+	 * 
+	 * @param aggregation	Chromatogram.SUM or Chromatogram.MAX
+	 * @return a point for each scan of the window in [scan_i, scan_f] 
+	 */
+	public Chromatogram xic(int scan_i, int scan_f, float mzi, float mzf, float mzPrecursor, int aggregation) throws MzRTreeException, SQLException {
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		if (swath < 0)
+			throw(new MzRTreeException("No swath contains the precursor " + mzPrecursor));
+		final int first_scan = Math.max(scan_i, 0);
+		int last_scan = Math.min(scan_f, getScanIndex().getScanCount(swath) - 1);
+		float[] rts = getRTs(swath, first_scan, last_scan);
+		final float[] intensities = new float[rts.length];
+		if (intensities.length == 0) return new Chromatogram(first_scan, rts, intensities);
+
+		PeakVisitor aggregator;
+		if (aggregation == Chromatogram.MAX) {
+			aggregator = new PeakVisitor() {
+				@Override
+				public void visit(int scan, float mz, float intensity) {
+					if (intensity > intensities[scan - first_scan]) intensities[scan - first_scan] = intensity;
+				}
+			};
+		} else if (aggregation == Chromatogram.SUM) {
+			aggregator = new PeakVisitor() {
+				@Override
+				public void visit(int scan, float mz, float intensity) {
+					intensities[scan - first_scan] += intensity;
+				}
+			};
+		} else {
+			throw new IllegalArgumentException("Unknown aggregation: " + aggregation);
+		}
+		range_query(first_scan, last_scan, mzi, mzf, mzPrecursor, aggregator);
+		return new Chromatogram(first_scan, rts, intensities);
+	}
+
+	/**
+	 * The chromatogram of the scans in [rt_i, rt_f] (see xic(scan_i, scan_f, ..)).
+	 */
+	public Chromatogram xic(float rt_i, float rt_f, float mz_i, float mz_f, float mzPrecursor, int aggregation) throws MzRTreeException, SQLException {
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+		return xic(scans[0], scans[1], mz_i, mz_f, mzPrecursor, aggregation);
+	}
+
+	/**
+	 * @return the retention times of the scans of a window in [first_scan, last_scan]
+	 */
+	private float[] getRTs(int swath, int first_scan, int last_scan) throws SQLException {
+		ScanIndex index = getScanIndex();
+		float[] rts = new float[Math.max(last_scan - first_scan + 1, 0)];
+		for (int i = 0; i < rts.length; i++) {
+			rts[i] = index.getRT(swath, first_scan + i);
+		}
+		return rts;
+	}
+
+	/**
+	 * The total ion chromatogram of a window: the sum of the intensities of each scan. 
+	 * It is read from the statistics of the scans, without reading the BBs, unless the
+	 * database was built without them.
+	 * Thread-safe if the mzRTree was opened read-only.
+	 * 
+	 * @return a point for each scan of the window in [scan_i, scan_f] 
+	 */
+	public Chromatogram tic(int scan_i, int scan_f, float mzPrecursor) throws MzRTreeException, SQLException {
+		return summary(scan_i, scan_f, mzPrecursor, Chromatogram.SUM);
+	}
+
+	public Chromatogram tic(float rt_i, float rt_f, float mzPrecursor) throws MzRTreeException, SQLException {
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+		return tic(scans[0], scans[1], mzPrecursor);
+	}
+
+	/**
+	 * The base peak chromatogram of a window: the maximum intensity of each scan (see 
+	 * tic(scan_i, scan_f, mzPrecursor)).
+	 */
+	public Chromatogram bpc(int scan_i, int scan_f, float mzPrecursor) throws MzRTreeException, SQLException {
+		return summary(scan_i, scan_f, mzPrecursor, Chromatogram.MAX);
+	}
+
+	public Chromatogram bpc(float rt_i, float rt_f, float mzPrecursor) throws MzRTreeException, SQLException {
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+		return bpc(scans[0], scans[1], mzPrecursor);
+	}
+
+	private Chromatogram summary(int scan_i, int scan_f, float mzPrecursor, int aggregation) throws MzRTreeException, SQLException {
+		ScanStats stats = getScanStats();
+		if (stats == null) {
+			return xic(scan_i, scan_f, 0, Float.MAX_VALUE, mzPrecursor, aggregation);
+		}
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		if (swath < 0)
+			throw(new MzRTreeException("No swath contains the precursor " + mzPrecursor));
+		int first_scan = Math.max(scan_i, 0);
+		int last_scan = Math.min(scan_f, getScanIndex().getScanCount(swath) - 1);
+		float[] rts = getRTs(swath, first_scan, last_scan);
+		if (rts.length == 0) return new Chromatogram(first_scan, rts, new float[0]);
+		return new Chromatogram(first_scan, rts, stats.get(swath, first_scan, last_scan, aggregation));
+	}
+
+	/**
+	 * @return the number of peaks of each scan of the window in [scan_i, scan_f], read from
+	 * 			the statistics of the scans (see tic(scan_i, scan_f, mzPrecursor))
+	 */
+	public int[] getPeakCounts(int scan_i, int scan_f, float mzPrecursor) throws MzRTreeException, SQLException {
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		if (swath < 0)
+			throw(new MzRTreeException("No swath contains the precursor " + mzPrecursor));
+		final int first_scan = Math.max(scan_i, 0);
+		int last_scan = Math.min(scan_f, getScanIndex().getScanCount(swath) - 1);
+		if (last_scan < first_scan) return new int[0];
+		ScanStats stats = getScanStats();
+		if (stats != null) return stats.getPeakCounts(swath, first_scan, last_scan);
+
+		final int[] counts = new int[last_scan - first_scan + 1];
+		range_query(first_scan, last_scan, 0, Float.MAX_VALUE, mzPrecursor, new PeakVisitor() {
+			@Override
+			public void visit(int scan, float mz, float intensity) {
+				counts[scan - first_scan]++;
+			}
+		});
+		return counts;
+	}
+
+	/**
+	 * Read a whole scan of a window: all the BBs of its strip containing the scan are 
+	 * read, and only the row of the scan is decoded. With a tile cache (see 
+	 * setTileCache(..)) the rows of a BB are found by their offsets, so that the other 
+	 * scans of the strip are read without decoding it again.
+	 * Thread-safe if the mzRTree was opened read-only.
+	 * 
+	 * @param scan		the scan, relative to the window
+	 * @return the spectrum, or null if no window contains the precursor or the window has
+	 * 			no such scan
+	 */
+	public Spectrum spectrum(int scan, float mzPrecursor) throws MzRTreeException, SQLException {
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		if (swath < 0) return null;
+		return spectrum(swath, scan);
+	}
+
+	/**
+	 * The scan of the window closest to a retention time (see spectrum(scan, mzPrecursor)).
+	 */
+	public Spectrum spectrum(float rt, float mzPrecursor) throws MzRTreeException, SQLException {
+		int swath = getSwathCatalog().getSwath(mzPrecursor);
+		if (swath < 0) return null;
+		return spectrum(swath, getScanIndex().getNearestScan(swath, rt));
+	}
+
+	private Spectrum spectrum(int swath, int scan) throws MzRTreeException, SQLException {
+		ScanIndex index = getScanIndex();
+		if (scan < 0 || scan >= index.getScanCount(swath)) return null;
+		// BBs are decoded by increasing mz, and the tiles of a strip do not overlap
+		PeakMatrix peaks = new PeakMatrix();
+		peaks.reset(scan, 1);
+		swath_query(swath, scan, scan, 0, Float.MAX_VALUE, peaks.appender);
+		int count = peaks.getPeakCount(0);
+		return new Spectrum(swath, scan, index.getRT(swath, scan), 
+				Arrays.copyOf(peaks.getMzs(0), count), Arrays.copyOf(peaks.getIntensities(0), count));
+	}
+
+	/**
+	 * Read a cycle of the acquisition: the same scan of every window, i.e. the MS1 scan 
+	 * and the MS2 scans acquired after it. If the mzRTree was opened read-only, the 
+	 * windows are read in parallel, each by its own connection.
+	 * 
+	 * @param cycle		the scan, relative to the windows
+	 * @return the spectrum of each window (see SwathCatalog), the MS1 one first; null for 
+	 * 			windows without this scan
+	 */
+	public Spectrum[] cycle(int cycle) throws MzRTreeException, SQLException {
+		Spectrum[] spectra = new Spectrum[getSwathCatalog().size()];
+		if (!readOnly) {
+			for (int swath = 0; swath < spectra.length; swath++) {
+				spectra[swath] = spectrum(swath, cycle);
+			}
+			return spectra;
+		}
+
+		ArrayList<Callable<Spectrum>> reads = new ArrayList<Callable<Spectrum>>(spectra.length);
+		for (int swath = 0; swath < spectra.length; swath++) {
+			final int current_swath = swath;
+			final int current_cycle = cycle;
+			reads.add(new Callable<Spectrum>() {
+				@Override
+				public Spectrum call() throws Exception {
+					return spectrum(current_swath, current_cycle);
+				}
+			});
+		}
+		return invoke(reads).toArray(spectra);
+	}
+
+	/**
+	 * The cycle whose MS1 scan is the closest to a retention time (see cycle(cycle)).
+	 */
+	public Spectrum[] cycle(float rt) throws MzRTreeException, SQLException {
+		return cycle(getScanIndex().getNearestScan(0, rt));
+	}
+
+	/**
+	 * Run tasks of a query on the query threads (read-only mode only) and wait for them.
+	 * 
+	 * @return the results of the tasks, in the same order
+	 * @throws SQLException if a task failed (its exception is rethrown if possible)
+	 */
+	private <T> ArrayList<T> invoke(List<Callable<T>> tasks) throws MzRTreeException, SQLException {
+		ExecutorService executor = getQueryThreads();
+		ArrayList<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		for (Callable<T> task : tasks) {
+			futures.add(executor.submit(task));
+		}
+		ArrayList<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while querying the mzRTree", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof MzRTreeException) throw (MzRTreeException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new SQLException("The query failed", cause);
+		} finally {
+			for (Future<T> future : futures) {
+				future.cancel(false);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return the threads running the tasks of queries (see cycle(..) and raster(..)), 
+	 * 			created at the first call. The threads are kept until close(), since each
+	 * 			of them opens its own connection (see reader()), closed only by close()
+	 */
+	private synchronized ExecutorService getQueryThreads() throws SQLException {
+		if (closed) throw new SQLException("The mzRTree has been closed");
+		if (queryThreads == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			queryThreads = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable task) {
+							Thread thread = new Thread(task, "mzRTree query");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return queryThreads;
+	}
+
+	/**
+	 * The same query of range_query(scan_i, scan_f, mzi, mzf, mzPrecursor), whose scans are
+	 * returned one at a time by a cursor decoding BBs by increasing scan (see ScanCursor).
+	 * The memory used by the cursor does not depend on the size of the range.
+	 */
+	public ScanCursor scan_cursor(int scan_i, int scan_f, float mzi, float mzf, float mzPrecursor) throws SQLException {
+		return swath_cursor(getSwathCatalog().getSwath(mzPrecursor), scan_i, scan_f, mzi, mzf);
+	}
+
+	/**
+	 * A cursor over a range of a window (see scan_cursor(scan_i, scan_f, ..)).
+	 * 
+	 * @param swath		the window, -1 for a cursor without peaks
+	 */
+	protected ScanCursor swath_cursor(int swath, int scan_i, int scan_f, float mzi, float mzf) throws SQLException {
+		List<BBnode> bbs = swath < 0 ? new ArrayList<BBnode>() : getBBs(scan_i, scan_f, mzi, mzf, swath);
+		return new ScanCursor(this, swath, scan_i, scan_f, mzi, mzf, bbs);
+	}
+
+	/**
+	 * The same query of range_query(rt_i, rt_f, mz_i, mz_f, mzPrecursor), whose scans are
+	 * returned one at a time by a cursor (see scan_cursor(scan_i, scan_f, ..)).
+	 */
+	public ScanCursor scan_cursor(float rt_i, float rt_f, float mz_i, float mz_f, float mzPrecursor) throws MzRTreeException, SQLException {
+		int[] scans = getScanRange(rt_i, rt_f, mzPrecursor);
+		return scan_cursor(scans[0], scans[1], mz_i, mz_f, mzPrecursor);
+	}
+
 	public class MzIntList {
 
 		private final ArrayList<Float> mzs;
@@ -381,6 +1697,11 @@ public class DBmzRTree{
 			intensities= new ArrayList<Float>();
 		}
 
+		void add(float mz, float intensity) {
+			mzs.add(mz);
+			intensities.add(intensity);
+		}
+
 		public Float[] getMzs() {
 			Float[] mzsArray = new Float[mzs.size()];
 			return mzs.toArray(mzsArray);
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * All the peaks of a BB, decoded once by its codec and kept in a TileCache.
+ *
+ * The peaks are saved in a single buffer, on the heap or off-heap (direct): the number
+ * of rows (scans) of the BB, the position of the first peak of each row followed by the
+ * number of peaks, then the mz values of all the peaks and their intensities. Peaks of a
+ * row are sorted by mz, so that a range of mz values is found with a binary search.
+ * A DecodedTile is immutable and can be read by several threads.
+ */
+class DecodedTile {
+
+	private final int min_scan_BB;
+	private final int num_rows;
+	private final int num_peaks;
+	private final ByteBuffer buffer;
+	private final IntBuffer offsets;
+	private final FloatBuffer mzs;
+	private final FloatBuffer intensities;
+
+	private DecodedTile(ByteBuffer buffer, int min_scan_BB) {
+		this.buffer = buffer;
+		this.min_scan_BB = min_scan_BB;
+		this.num_rows = buffer.getInt(0);
+		this.offsets = ((ByteBuffer) buffer.duplicate().position(4)).slice().asIntBuffer();
+		this.num_peaks = offsets.get(num_rows);
+		int mzs_position = 4 * (num_rows + 2);
+		this.mzs = ((ByteBuffer) buffer.duplicate().position(mzs_position)).slice().asFloatBuffer();
+		this.intensities = ((ByteBuffer) buffer.duplicate().position(mzs_position + 4 * num_peaks)).slice().asFloatBuffer();
+	}
+
+	/**
+	 * Decode all the peaks of a BB.
+	 *
+	 * @param data			the binary data of the BB (see TileCodec.decode(..))
+	 * @param off_heap		if true, the peaks are saved out of the Java heap
+	 */
+	protected static DecodedTile decode(ByteBuffer data, int min_scan_BB, int max_scan_BB, boolean off_heap) {
+		Builder builder = new Builder(min_scan_BB, max_scan_BB - min_scan_BB + 1);
+		TileCodecs.decode(data, min_scan_BB, max_scan_BB, min_scan_BB, max_scan_BB, -Float.MAX_VALUE, Float.MAX_VALUE, builder);
+		return builder.build(off_heap);
+	}
+
+	/**
+	 * @return the number of bytes used by the peaks of the BB
+	 */
+	protected int size() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * Visit the peaks whose scan is in [scan_i, scan_f] and whose mz value is in (mzi, mzf],
+	 * as TileCodec.decode(..) does.
+	 */
+	protected void visit(int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor) {
+		int start_row = Math.max(scan_i - min_scan_BB, 0);
+		int end_row = Math.min(scan_f - min_scan_BB, num_rows - 1);
+		for (int row = start_row; row <= end_row; row++) {
+			int end = offsets.get(row + 1);
+			for (int i = first_peak_after(offsets.get(row), end, mzi); i < end; i++) {
+				float mz = mzs.get(i);
+				if (mz > mzf) break;
+				visitor.visit(min_scan_BB + row, mz, intensities.get(i));
+			}
+		}
+	}
+
+	/**
+	 * @return the first peak in [start, end) whose mz value is bigger than mz (end if none)
+	 */
+	private int first_peak_after(int start, int end, float mz) {
+		int low = start, high = end;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mzs.get(mid) <= mz) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Collects the peaks visited by a codec, by increasing scan.
+	 */
+	private static class Builder implements PeakVisitor {
+		private final int min_scan_BB;
+		private final int[] offsets;
+		private float[] mzs = new float[256];
+		private float[] intensities = new float[256];
+		private int num_peaks = 0;
+		private int row = 0; // row of the last visited peak
+
+		private Builder(int min_scan_BB, int num_rows) {
+			this.min_scan_BB = min_scan_BB;
+			this.offsets = new int[num_rows + 1];
+		}
+
+		@Override
+		public void visit(int scan, float mz, float intensity) {
+			// the previous rows end here
+			for (; row < scan - min_scan_BB; row++) {
+				offsets[row + 1] = num_peaks;
+			}
+			if (num_peaks == mzs.length) {
+				mzs = Arrays.copyOf(mzs, 2 * num_peaks);
+				intensities = Arrays.copyOf(intensities, 2 * num_peaks);
+			}
+			mzs[num_peaks] = mz;
+			intensities[num_peaks] = intensity;
+			num_peaks++;
+		}
+
+		private DecodedTile build(boolean off_heap) {
+			int num_rows = offsets.length - 1;
+			for (; row < num_rows; row++) {
+				offsets[row + 1] = num_peaks;
+			}
+			int size = 4 * (num_rows + 2) + 8 * num_peaks;
+			ByteBuffer buffer = off_heap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+			buffer.putInt(num_rows);
+			buffer.asIntBuffer().put(offsets);
+			buffer.position(4 * (num_rows + 2));
+			buffer.asFloatBuffer().put(mzs, 0, num_peaks);
+			buffer.position(4 * (num_rows + 2) + 4 * num_peaks);
+			buffer.asFloatBuffer().put(intensities, 0, num_peaks);
+			buffer.clear();
+			return new DecodedTile(buffer, min_scan_BB);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compress the binary data of a BB saved by another codec with java.util.zip. The layout is
+ * <pre>
+ * 'ZLIB' | int size of the uncompressed data | the compressed data
+ * </pre>
+ * and the uncompressed data (starting with the tag of its codec) is decoded by TileCodecs.
+ */
+class DeflateCodec implements TileCodec {
+
+	private static final byte[] DEFLATE = { 'Z', 'L', 'I', 'B' };
+
+	//Deflater and Inflater allocate native memory: each thread reuses its own
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION);
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	//the codec whose data are compressed (only needed for encoding)
+	private final TileCodec codec;
+
+	/**
+	 * @param codec		the codec whose data are compressed
+	 */
+	protected DeflateCodec(TileCodec codec) {
+		this.codec = codec;
+	}
+
+	@Override
+	public byte[] tag() {
+		return DEFLATE;
+	}
+
+	@Override
+	public byte[] encode(StripBuffer buffer, BBnode bb, int first_rt) {
+		byte[] data = codec.encode(buffer, bb, first_rt);
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+		out.write(DEFLATE, 0, DEFLATE.length);
+		out.write(Utils.intToBytes(data.length), 0, 4);
+		byte[] chunk = new byte[4096];
+		while (!deflater.finished()) {
+			int count = deflater.deflate(chunk);
+			out.write(chunk, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public void decode(ByteBuffer data, int min_scan_BB, int max_scan_BB,
+			int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor) {
+		TileCodecs.decode(inflate(data), min_scan_BB, max_scan_BB, scan_i, scan_f, mzi, mzf, visitor);
+	}
+
+	/**
+	 * @param data		a BB saved by this codec, from data.position() to data.limit()
+	 * @return the uncompressed data of the BB
+	 */
+	protected static ByteBuffer inflate(ByteBuffer data) {
+		int offset = data.position() + DEFLATE.length + 4;
+		int length = data.limit() - offset;
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		if (data.hasArray()) {
+			inflater.setInput(data.array(), data.arrayOffset() + offset, length);
+		} else {
+			byte[] compressed = new byte[length];
+			((ByteBuffer) data.duplicate().position(offset)).get(compressed);
+			inflater.setInput(compressed);
+		}
+		byte[] uncompressed = new byte[data.getInt(data.position() + DEFLATE.length)];
+		try {
+			int size = 0;
+			while (size < uncompressed.length && !inflater.finished()) {
+				int count = inflater.inflate(uncompressed, size, uncompressed.length - size);
+				// a truncated stream needs more input, and inflate(..) would return 0 forever
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new DataFormatException("truncated data");
+				}
+				size += count;
+			}
+			if (size != uncompressed.length) {
+				throw new DataFormatException(size + " bytes instead of " + uncompressed.length);
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Corrupted BB: " + e.getMessage(), e);
+		}
+		return ByteBuffer.wrap(uncompressed);
+	}
+}
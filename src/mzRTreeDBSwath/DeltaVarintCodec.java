@@ -0,0 +1,126 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A lossless layout for sparse BBs which is smaller than the one of SparseCodec. The mz 
+ * values of a spectrum are sorted, and so are the int representations of positive floats 
+ * (Float.floatToIntBits(..)): each mz value is saved as the difference between its int 
+ * representation and the one of the previous peak, using a variable number of bytes 
+ * (Utils.intToVarint(..)). The layout is
+ * <pre>
+ * 'DVAR' | for each spectrum: varint number of bytes | varint n | n varint mz deltas | n float intensities
+ * </pre>
+ */
+class DeltaVarintCodec implements TileCodec {
+
+	private static final byte[] DELTA_VARINT = { 'D', 'V', 'A', 'R' };
+
+	@Override
+	public byte[] tag() {
+		return DELTA_VARINT;
+	}
+
+	@Override
+	public byte[] encode(StripBuffer buffer, BBnode bb, int first_rt) {
+		// first compute the size of the BB
+		int size = DELTA_VARINT.length;
+		for (int k = bb.min_rt - first_rt; k <= bb.max_rt - first_rt; k++) {
+			int row_bytes = row_size(buffer, k, bb.mz_tile);
+			size += Utils.varintSize(row_bytes) + row_bytes;
+		}
+
+		byte[] out_buffer = new byte[size];
+		System.arraycopy(DELTA_VARINT, 0, out_buffer, 0, DELTA_VARINT.length);
+		int pointer = DELTA_VARINT.length;
+		for (int k = bb.min_rt - first_rt; k <= bb.max_rt - first_rt; k++) {
+			int start = buffer.tile_start(k, bb.mz_tile);
+			int end = buffer.tile_end(k, bb.mz_tile);
+			pointer = Utils.intToVarint(row_size(buffer, k, bb.mz_tile), out_buffer, pointer);
+			pointer = Utils.intToVarint(end - start, out_buffer, pointer);
+			int previous = 0;
+			for (int j = start; j < end; j++) {
+				int bits = Float.floatToIntBits(buffer.mzs[j]);
+				pointer = Utils.intToVarint(bits - previous, out_buffer, pointer);
+				previous = bits;
+			}
+			for (int j = start; j < end; j++) {
+				Utils.intToBytes(Float.floatToIntBits(buffer.intensities[j]), out_buffer, pointer);
+				pointer += 4;
+			}
+		}
+		return out_buffer;
+	}
+
+	/**
+	 * @return the number of bytes required by the peaks of a tile of the k-th spectrum
+	 */
+	private static int row_size(StripBuffer buffer, int k, int tile) {
+		int start = buffer.tile_start(k, tile);
+		int end = buffer.tile_end(k, tile);
+		int size = Utils.varintSize(end - start) + 4 * (end - start);
+		int previous = 0;
+		for (int j = start; j < end; j++) {
+			int bits = Float.floatToIntBits(buffer.mzs[j]);
+			size += Utils.varintSize(bits - previous);
+			previous = bits;
+		}
+		return size;
+	}
+
+	@Override
+	public void decode(ByteBuffer data, int min_scan_BB, int max_scan_BB,
+			int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor) {
+		int buffer_pointer = data.position() + DELTA_VARINT.length;
+
+		int start_scan = scan_i >= min_scan_BB ? scan_i : min_scan_BB; 
+		int end_scan = scan_f <= max_scan_BB ? scan_f: max_scan_BB;
+
+		//jump the first rows since they do not contain interesting data
+		for (int scan = min_scan_BB; scan < start_scan; scan++) {
+			int row_bytes = Utils.varintToInt(data, buffer_pointer);
+			buffer_pointer += Utils.varintSize(row_bytes) + row_bytes;
+		}
+
+		for (int scan = start_scan; scan <= end_scan; scan++) {
+			int row_bytes = Utils.varintToInt(data, buffer_pointer);
+			buffer_pointer += Utils.varintSize(row_bytes);
+			int end_pointer = buffer_pointer + row_bytes;
+			int num_peaks = Utils.varintToInt(data, buffer_pointer);
+			buffer_pointer += Utils.varintSize(num_peaks);
+			//intensities are saved after the mz values
+			int intensity_pointer = end_pointer - 4 * num_peaks;
+			int bits = 0;
+			for (int j = 0; j < num_peaks; j++) {
+				int delta = Utils.varintToInt(data, buffer_pointer);
+				buffer_pointer += Utils.varintSize(delta);
+				bits += delta;
+				float curr_mz = Float.intBitsToFloat(bits);
+				if (curr_mz > mzf) break;
+				if (curr_mz > mzi) {
+					visitor.visit(scan, curr_mz, data.getFloat(intensity_pointer + 4 * j));
+				}
+			}
+			buffer_pointer = end_pointer;
+		}
+	}
+}
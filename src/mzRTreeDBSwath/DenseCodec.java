@@ -0,0 +1,120 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * The layout of dense BBs (see MzRTree.set_density(..)): the distinct mz values of the BB
+ * are saved once, then each spectrum is saved as the list of the intensities of all of them 
+ * (0 if the spectrum has no peak at that mz). A spectrum of a dense BB never has two peaks 
+ * at the same mz value (see MzRTree.set_density(..)). The layout is
+ * <pre>
+ * 'DENS' | int n | n float mz values | for each spectrum: n float intensities
+ * </pre>
+ * Since all the spectra have the same size, a spectrum can be read without reading the
+ * previous ones.
+ */
+class DenseCodec implements TileCodec {
+
+	private static final byte[] DENSE_MATRIX = { 'D', 'E', 'N', 'S' };
+
+	@Override
+	public byte[] tag() {
+		return DENSE_MATRIX;
+	}
+
+	@Override
+	public byte[] encode(StripBuffer buffer, BBnode bb, int first_rt) {
+		float[] mz_axis = bb.mz_axis;
+		int row_bytes = 4 * mz_axis.length;
+		byte[] out_buffer = new byte[DENSE_MATRIX.length + 4 + row_bytes * (1 + bb.max_rt - bb.min_rt + 1)];
+		System.arraycopy(DENSE_MATRIX, 0, out_buffer, 0, DENSE_MATRIX.length);
+		Utils.intToBytes(mz_axis.length, out_buffer, DENSE_MATRIX.length);
+		int pointer = DENSE_MATRIX.length + 4;
+		for (int j = 0; j < mz_axis.length; j++) {
+			Utils.intToBytes(Float.floatToIntBits(mz_axis[j]), out_buffer, pointer + 4 * j);
+		}
+		pointer += row_bytes;
+
+		for (int k = bb.min_rt - first_rt; k <= bb.max_rt - first_rt; k++) {
+			// peaks and mz_axis are both sorted: merge them
+			int col = 0;
+			int mzIdxMax = buffer.tile_end(k, bb.mz_tile);
+			for (int j = buffer.tile_start(k, bb.mz_tile); j < mzIdxMax; j++) {
+				while (mz_axis[col] < buffer.mzs[j]) col++;
+				Utils.intToBytes(Float.floatToIntBits(buffer.intensities[j]), out_buffer, pointer + 4 * col);
+			}
+			pointer += row_bytes;
+		}
+		return out_buffer;
+	}
+
+	@Override
+	public void decode(ByteBuffer data, int min_scan_BB, int max_scan_BB,
+			int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor) {
+		//all the values have 4 bytes: read them through a typed view of the BB,
+		//whose index i is the value in bytes [4*i, 4*i+4) of the BB
+		FloatBuffer floats = data.asFloatBuffer();
+
+		//the mz values of the columns of the BB start after DENSE_MATRIX and n 
+		int num_col_mzs = data.getInt(data.position() + DENSE_MATRIX.length);
+		int axis_pointer = 2;
+
+		//columns of the BB in (mzi, mzf]
+		int start_mz = first_col_after(floats, axis_pointer, num_col_mzs, mzi);
+		int end_mz = first_col_after(floats, axis_pointer, num_col_mzs, mzf) - 1;
+		if (start_mz > end_mz) return;
+
+		int start_scan = scan_i >= min_scan_BB ? scan_i : min_scan_BB; 
+		int end_scan = scan_f <= max_scan_BB ? scan_f: max_scan_BB;
+
+		//each row has the same size: jump directly to the first row of interest
+		int row_pointer = axis_pointer + num_col_mzs * (1 + start_scan - min_scan_BB);
+		for (int scan = start_scan; scan <= end_scan; scan++, row_pointer += num_col_mzs) {
+			for (int col = start_mz; col <= end_mz; col++) {
+				float value = floats.get(row_pointer + col);
+				//a zero intensity means no peak at this mz
+				if (value != 0) {
+					visitor.visit(scan, floats.get(axis_pointer + col), value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param floats		a dense BB
+	 * @param axis_pointer	position of the first mz value of the BB's columns
+	 * @param num_col_mzs	number of columns of the BB
+	 * @param mz			the mz value to look for
+	 * 
+	 * @return the first column whose mz value is bigger than mz (num_col_mzs if none)
+	 */
+	private static int first_col_after(FloatBuffer floats, int axis_pointer, int num_col_mzs, float mz) {
+		int low = 0, high = num_col_mzs;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (floats.get(axis_pointer + mid) <= mz) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,58 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.util.ArrayList;
+
+/**
+ * The BBs of a strip as they have to be stored into the mzRTree database: the BBs
+ * computed by MzRTree.compute_BB(..), the binary data of each BB and the retention
+ * times and the statistics of the spectra in the strip. An EncodedStrip does not depend on the database,
+ * so that strips can be encoded by a thread and stored by another one (see StripWriter).
+ */
+class EncodedStrip {
+
+	//number of the swath containing the strip (see SwathCatalog)
+	protected final int swath;
+	//the BBs of the strip and, in the same order, their binary data 
+	protected final ArrayList<BBnode> bbs = new ArrayList<BBnode>();
+	protected final ArrayList<byte[]> bbsData = new ArrayList<byte[]>();
+	//scan number (as in the mzXML file) and retention time of the spectra in the strip
+	protected final int[] absScanNumbers;
+	protected final float[] retentionTimes;
+	//sum and maximum of the intensities and number of peaks of the spectra in the strip
+	protected final float[] scanSums;
+	protected final float[] scanMaxs;
+	protected final int[] scanCounts;
+
+	protected EncodedStrip(int swath, int[] absScanNumbers, float[] retentionTimes) {
+		this.swath = swath;
+		this.absScanNumbers = absScanNumbers;
+		this.retentionTimes = retentionTimes;
+		this.scanSums = new float[absScanNumbers.length];
+		this.scanMaxs = new float[absScanNumbers.length];
+		this.scanCounts = new int[absScanNumbers.length];
+	}
+
+	protected void add(BBnode bb, byte[] data) {
+		bbs.add(bb);
+		bbsData.add(data);
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * The BBs table loaded in memory (see DBmzRTree.setMemoryRTree(..)): one r-tree of
+ * RTreeNodes for each SWATH window, packed bottom-up with the Sort-Tile-Recursive
+ * algorithm. Leaves contain at most Utils.BB_PER_LEAF BBs and internal nodes at most
+ * NODE_FANOUT children. The r-tree is immutable and can be searched by several threads.
+ */
+class MemoryRTree {
+
+	private static final int NODE_FANOUT = 16;
+
+	private static final Comparator<BBnode> BY_MIN_MZ = new Comparator<BBnode>() {
+		@Override
+		public int compare(BBnode a, BBnode b) {
+			return Float.compare(a.min_mz, b.min_mz);
+		}
+	};
+
+	//root of the r-tree of each window (null if the window has no BBs)
+	private final RTreeNode[] roots;
+
+	/**
+	 * @param swaths	the BBs of each window
+	 */
+	protected MemoryRTree(ArrayList<ArrayList<BBnode>> swaths) {
+		roots = new RTreeNode[swaths.size()];
+		for (int swath = 0; swath < roots.length; swath++) {
+			ArrayList<BBnode> bbs = swaths.get(swath);
+			if (bbs.isEmpty()) continue;
+
+			// the leaves
+			BBnode[] ranges = bbs.toArray(new BBnode[bbs.size()]);
+			ArrayList<RTreeNode> nodes = new ArrayList<RTreeNode>();
+			for (int[] group : tile(ranges, Utils.BB_PER_LEAF)) {
+				RTreeNode leaf = new RTreeNode();
+				leaf.list_bb = new BBnode[group.length];
+				for (int i = 0; i < group.length; i++) {
+					leaf.list_bb[i] = ranges[group[i]];
+				}
+				leaf.num_bb = group.length;
+				leaf.range = union(leaf.list_bb);
+				nodes.add(leaf);
+			}
+			// the internal nodes, one level at a time
+			while (nodes.size() > 1) {
+				ranges = new BBnode[nodes.size()];
+				for (int i = 0; i < ranges.length; i++) {
+					ranges[i] = nodes.get(i).range;
+				}
+				ArrayList<RTreeNode> parents = new ArrayList<RTreeNode>();
+				for (int[] group : tile(ranges, NODE_FANOUT)) {
+					RTreeNode parent = new RTreeNode();
+					parent.child = new RTreeNode[group.length];
+					BBnode[] child_ranges = new BBnode[group.length];
+					for (int i = 0; i < group.length; i++) {
+						parent.child[i] = nodes.get(group[i]);
+						parent.num_bb += parent.child[i].num_bb;
+						child_ranges[i] = ranges[group[i]];
+					}
+					parent.range = union(child_ranges);
+					parents.add(parent);
+				}
+				nodes = parents;
+			}
+			roots[swath] = nodes.get(0);
+		}
+	}
+
+	/**
+	 * Sort-Tile-Recursive: sort the BBs by scan, cut them in vertical slices and sort each
+	 * slice by mz, then cut each slice in groups of at most capacity BBs.
+	 * 
+	 * @return the groups, as positions in bbs
+	 */
+	private static ArrayList<int[]> tile(final BBnode[] bbs, int capacity) {
+		Integer[] sorted = new Integer[bbs.length];
+		for (int i = 0; i < sorted.length; i++) sorted[i] = i;
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(bbs[a].min_rt + bbs[a].max_rt, bbs[b].min_rt + bbs[b].max_rt);
+			}
+		});
+		Comparator<Integer> byCenterMz = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Float.compare(bbs[a].min_mz + bbs[a].max_mz, bbs[b].min_mz + bbs[b].max_mz);
+			}
+		};
+		int num_groups = (sorted.length + capacity - 1) / capacity;
+		int num_slices = (int) Math.ceil(Math.sqrt(num_groups));
+		int slice_size = num_slices * capacity;
+		ArrayList<int[]> groups = new ArrayList<int[]>(num_groups);
+		for (int start = 0; start < sorted.length; start += slice_size) {
+			int end = Math.min(start + slice_size, sorted.length);
+			Arrays.sort(sorted, start, end, byCenterMz);
+			for (int i = start; i < end; i += capacity) {
+				int[] group = new int[Math.min(capacity, end - i)];
+				for (int j = 0; j < group.length; j++) group[j] = sorted[i + j];
+				groups.add(group);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * @return a BB containing all the BBs
+	 */
+	private static BBnode union(BBnode[] bbs) {
+		BBnode range = new BBnode();
+		range.min_rt = Integer.MAX_VALUE;
+		range.max_rt = Integer.MIN_VALUE;
+		range.min_mz = Float.MAX_VALUE;
+		range.max_mz = -Float.MAX_VALUE;
+		for (BBnode bb : bbs) {
+			range.min_rt = Math.min(range.min_rt, bb.min_rt);
+			range.max_rt = Math.max(range.max_rt, bb.max_rt);
+			range.min_mz = Math.min(range.min_mz, bb.min_mz);
+			range.max_mz = Math.max(range.max_mz, bb.max_mz);
+		}
+		return range;
+	}
+
+	/**
+	 * @return the BBs of a window intersecting the range, sorted by min_mz
+	 */
+	protected ArrayList<BBnode> search(int swath, int scan_i, int scan_f, float mz_i, float mz_f) {
+		ArrayList<BBnode> bbs = new ArrayList<BBnode>();
+		if (swath >= 0 && swath < roots.length && roots[swath] != null) {
+			search(roots[swath], scan_i, scan_f, mz_i, mz_f, bbs);
+			Collections.sort(bbs, BY_MIN_MZ);
+		}
+		return bbs;
+	}
+
+	private static void search(RTreeNode node, int scan_i, int scan_f, float mz_i, float mz_f, ArrayList<BBnode> bbs) {
+		if (!intersects(node.range, scan_i, scan_f, mz_i, mz_f)) return;
+		if (node.list_bb != null) {
+			for (BBnode bb : node.list_bb) {
+				if (intersects(bb, scan_i, scan_f, mz_i, mz_f)) bbs.add(bb);
+			}
+		} else {
+			for (RTreeNode child : node.child) {
+				search(child, scan_i, scan_f, mz_i, mz_f, bbs);
+			}
+		}
+	}
+
+	private static boolean intersects(BBnode bb, int scan_i, int scan_f, float mz_i, float mz_f) {
+		return bb.min_rt <= scan_f && bb.max_rt >= scan_i && bb.min_mz <= mz_f && bb.max_mz >= mz_i;
+	}
+}
@@ -20,18 +20,20 @@
 package mzRTreeDBSwath;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.systemsbiology.jrap.MSXMLParser;
 import org.systemsbiology.jrap.Scan;
@@ -62,10 +64,6 @@ import org.systemsbiology.jrap.ScanHeader;
 public class MzRTree {
 	public static final int FIXED_SIZE_SWATH_WIDTH = 25;
 	public static final float START_SWATH_MZ = 400F;
-	//codes that identify how a BB is saved*/
-	private final static byte[] SPARSE_MATRIX = { 'S', 'P', 'A', 'R' }; //sparse 
-	private final static byte[] DENSE_MATRIX = { 'D', 'E', 'N', 'S' }; //dense
-
 	//codes that identify a node when the r-tree is stored into the disk
 	private static final byte[] INTERNAL_NODE = { 'I', 'N', 'T', 'E' }; //internal node
 	private static final byte[] LEAF_NODE = { 'L', 'E', 'A', 'F' }; // leaf node
@@ -88,15 +86,23 @@ public class MzRTree {
 
 	private boolean mzRTree_ready = false; //true if the mzRTree is ready, false otherwise
 
-	//Pointer to the header and tail of the linked list containing all the BBs.
-	//They are used only when the mzRTree is built from scratch
-	private BBnode header;
-	private BBnode tail;
-	private int bb_number; 	//number of bb, used only when the mzRTree is built from scratch
-
 	RTreeNode root = new RTreeNode(); //root of the r-tree
 	private DBmzRTree mzRTreeDB;
 	private String fileSwathSizesPath;
+	private final BuildOptions options;
+
+	//Used only when the mzRTree is built from scratch: the writer storing the strips and,
+	//if options.build_threads > 1, the workers encoding them.
+	private StripWriter stripWriter;
+	private ExecutorService stripEncoders;
+	//StripBuffers that can be reused, number of StripBuffers allocated so far and its upper bound 
+	private BlockingQueue<StripBuffer> stripBuffers;
+	private int allocated_strip_buffers;
+	private int max_strip_buffers;
+	//the strip under construction of each swath (null if no scans are being added) and the 
+	//number of scans added so far
+	private SwathStrip[] swathStrips;
+	private int saved_spectra;
 
 
 	/**
@@ -123,6 +129,17 @@ public class MzRTree {
 
 
 	public MzRTree(DBmzRTree mzRTreeDBin,String filePathDB,String in_file, String out_dir, int max_spectra_per_strip, float lowestmz, float highestmz, int msLevel, String fileSwathSizesPath) throws MzRTreeException, SQLException, ClassNotFoundException, IOException {
+		this(mzRTreeDBin, filePathDB, in_file, out_dir, max_spectra_per_strip, lowestmz, highestmz, msLevel, fileSwathSizesPath, new BuildOptions());
+	}
+
+	/**
+	 * Build an mzRTree as MzRTree(mzRTreeDBin, filePathDB, in_file, out_dir, max_spectra_per_strip, 
+	 * lowestmz, highestmz, msLevel, fileSwathSizesPath), using the given build options.
+	 * 
+	 * @param options		how the mzRTree is built (e.g. how many threads encode the strips)
+	 * */
+	public MzRTree(DBmzRTree mzRTreeDBin,String filePathDB,String in_file, String out_dir, int max_spectra_per_strip, float lowestmz, float highestmz, int msLevel, String fileSwathSizesPath, BuildOptions options) throws MzRTreeException, SQLException, ClassNotFoundException, IOException {
+		this.options = options;
 		this.xml_input_file = in_file;
 		this.parser = new MSXMLParser(xml_input_file);
 		this.output_dir = out_dir + File.separator;
@@ -130,7 +147,6 @@ public class MzRTree {
 		this.lowest_mz = lowestmz;
 		this.highest_mz = highestmz;
 		this.msLevel = msLevel;
-		this.bb_number = 0;
 		this.fileSwathSizesPath = fileSwathSizesPath;
 		if (mzRTreeDBin == null){
 			mzRTreeDB = new DBmzRTree(filePathDB,false);
@@ -151,11 +167,7 @@ public class MzRTree {
 			setDefaultSwathSizeInfo();
 		}
 
-		for(int currentSwath = 1; currentSwath <= getTotSwathNumber(); currentSwath++){
-			save_strips(parser, currentSwath);
-//			java.lang.Runtime.getRuntime().exec("purge");
-			System.out.println("SWATH # " + currentSwath + " DONE! ");
-		}
+		save_strips(parser);
 	}
 
 	private void setDefaultSwathSizeInfo() throws SQLException {
@@ -213,6 +225,89 @@ public class MzRTree {
 		}
 	}
 
+	/**
+	 * Start an mzRTree whose scans are appended one at a time while they are acquired 
+	 * (see append_scan(..)) instead of being read from an mzXML file. Each strip is stored
+	 * and committed as soon as it is full, with the retention times of its scans and the
+	 * METADATA table, so that other connections (e.g. a DBmzRTree opened read-only on the 
+	 * same file, see DBmzRTree.refresh()) can query the committed strips while scans are
+	 * still being appended. Strips are committed in acquisition order only if 
+	 * options.build_threads <= 1.
+	 * 
+	 * @param mzRTreeDB				a new database (see DBmzRTree(filePath, true))
+	 * @param fileSwathSizesPath	the file of the SWATH windows, null for the default ones
+	 * @param options				how the strips are built
+	 * 
+	 * @throws MzRTreeException if a problem arises when starting the mzRTree.
+	 */
+	public MzRTree(DBmzRTree mzRTreeDB, int max_spectra_per_strip, float lowestmz, float highestmz, String fileSwathSizesPath, BuildOptions options) throws MzRTreeException, SQLException, IOException {
+		this.options = options;
+		this.mzRTreeDB = mzRTreeDB;
+		this.max_spectra_per_strip = max_spectra_per_strip;
+		this.lowest_mz = lowestmz;
+		this.highest_mz = highestmz;
+		this.msLevel = 0; // scans of all the MS levels are appended
+		this.fileSwathSizesPath = fileSwathSizesPath;
+		if (fileSwathSizesPath != null) {
+			importSwathSizeInfo();
+		} else {
+			setDefaultSwathSizeInfo();
+		}
+		try {
+			start_strips();
+		} catch (InterruptedException e) {
+			throw new MzRTreeException("Interrupted while starting the strips: " + e);
+		}
+	}
+
+	/**
+	 * Append a scan, in acquisition order: the scan belongs to the swath 
+	 * (absScanNumber - 1) % (number of swaths), as the scans of an mzXML file. Its peaks must
+	 * be sorted by mz values; only peaks in [lowest_mz, highest_mz] with a positive intensity
+	 * are kept. The scan can be queried once its strip is full and has been committed.
+	 * 
+	 * @param absScanNumber		the scan number, from 1, counting the scans of all the swaths
+	 * @param mzs				the mz values of the peaks (null if the scan has no peaks)
+	 * @param intensities		the intensities of the peaks
+	 * 
+	 * @throws MzRTreeException if the scan cannot be added or a previous strip could not be saved
+	 */
+	public void append_scan(int absScanNumber, float retentionTime, float[] mzs, float[] intensities) throws MzRTreeException {
+		if (swathStrips == null) throw new MzRTreeException("The mzRTree does not accept new scans");
+		try {
+			add_scan(swathStrips[(absScanNumber - 1) % swathStrips.length], absScanNumber, retentionTime, mzs, intensities);
+		} catch (InterruptedException e) {
+			throw new MzRTreeException("Interrupted while saving strips: " + e);
+		} catch (SQLException e) {
+			throw new MzRTreeException("Strips cannot be saved: " + e);
+		} catch (IOException e) {
+			throw new MzRTreeException("The file of the BBs cannot be written: " + e);
+		}
+	}
+
+	/**
+	 * Save the last strips of the appended scans, even if they are not full, and the pyramid
+	 * (if required by the build options). No scans can be appended afterwards.
+	 * 
+	 * @throws MzRTreeException if the strips cannot be saved
+	 */
+	public void finish_append() throws MzRTreeException, SQLException {
+		if (swathStrips == null) throw new MzRTreeException("The mzRTree does not accept new scans");
+		try {
+			try {
+				save_last_strips();
+			} finally {
+				stop_strip_writer();
+			}
+			end_strips();
+		} catch (InterruptedException e) {
+			throw new MzRTreeException("Interrupted while saving strips: " + e);
+		} catch (IOException e) {
+			throw new MzRTreeException("The file of the BBs cannot be written: " + e);
+		}
+		mzRTree_ready = true;
+	}
+
 	private int getTotSwathNumber(){
 		return swath_number_partial_fake_due_to_ms1 + swath_number_partial_true_due_to_ms2;  
 	}
@@ -225,6 +320,7 @@ public class MzRTree {
 	 * @throws MzRTreeException if a problem arises when building the mzRTree.
 	 * */
 	public MzRTree(String in_dir, int msLevel) throws MzRTreeException {
+		options = null;
 		output_dir = in_dir;
 		mzRTree_ready = true;
 		this.msLevel = msLevel;
@@ -238,20 +334,19 @@ public class MzRTree {
 	 * spectra_number is the number of spectra and mz_number is the number of mz
 	 * values at the current resolution. In the code rt or spectrum have the
 	 * same meaning.
+	 * 
+	 * The mzXML file is read only once: scans are acquired cyclically (MS1 first,
+	 * then one scan per SWATH), so the i-th scan of the file belongs to the swath
+	 * (i-1) % getTotSwathNumber(). Each scan is appended to the strip of its swath
+	 * and every strip is saved as soon as it is full.
 	 * @param parser 
 	 * 
 	 * @throws MzRTreeException if something bad happens!
 	 * @throws ClassNotFoundException 
 	 * @throws SQLException 
 	 * */
-	private void save_strips(MSXMLParser parser, int currentSwath) throws MzRTreeException, SQLException, ClassNotFoundException {
+	private void save_strips(MSXMLParser parser) throws MzRTreeException, SQLException, ClassNotFoundException {
 		try {
-			// header (resp., tail) will contain the first (resp., tail) node
-			// of the list
-			// containing all the BBs (not the real data!).
-			header = new BBnode();
-			tail = header;
-			
 			Utils.println("Saving strips.", Utils.PRINT_ALWAYS);
 
 			// only for JRAP3
@@ -263,333 +358,504 @@ public class MzRTree {
 
 			float rT = 0; // RT contains the real rt values of spectra
 			
-			int num_nonzero = 0; // total number of non zero entries in the "virtual" input matrix. Used for computing density
-			ArrayList<Float> mzValues = new ArrayList<Float>();
-			// let's create the matrix where a strip of scans will be stored
-			ArrayList<ArrayList<MzIntensity>> matrix = new ArrayList<ArrayList<MzIntensity>>(max_spectra_per_strip);
-			int workDone = 0;// advancing in saving spectra
-			int strip_number = 0;// current strip number
-			int pos_in_strip = 0;// current spectrum number in the current strip
-			int current_spectrum = currentSwath; // current spectra number as in the XML file
-			int saved_spectra = 0; // number of spectra with MS level equal to msLevel;
-			int absScanNumber = 0;
-			int groupNumber = 0;
-			float swathPrecursor = 0;
-			Connection connToMzRTreeDB=mzRTreeDB.getConnection();
-			connToMzRTreeDB.setAutoCommit(false);
-			PreparedStatement prepStatMapScanToRT = connToMzRTreeDB.prepareStatement("INSERT INTO SCAN_RT VALUES (?,?)");					
+			int scan_count = parser.getScanCount();
 
-			// We now save each spectrum in the respective strip.
-				while (current_spectrum <= parser.getScanCount()) {
+			start_strips();
+			try {
+				// We now save each spectrum in the strip of its swath.
+				for (int current_spectrum = 1; current_spectrum <= scan_count; current_spectrum++) {
+					SwathStrip swathStrip = swathStrips[(current_spectrum - 1) % swathStrips.length];
 					Scan scanParser = parser.rap(current_spectrum);
-					// if the MS level is not equal to msLevel, then save the strip!
 					ScanHeader scanHeader = scanParser.getHeader();
-					swathPrecursor = scanHeader.getPrecursorMz();
-
-						absScanNumber = scanHeader.getNum();
-						// print some info on the work done so far.
-						String retentionTime = scanHeader.getRetentionTime();
-						rT= Float.parseFloat(retentionTime
-								.substring(2, retentionTime.length() - 1));
-
-						if (scanHeader.getPeaksCount() != -1) {
-							// Only for JRAP 3
-													float[][] peakList = scanParser.getMassIntensityList();
-							//Only for JRAP 4 double [][] peakList =
-//							double[][] peakList = scanParser.getMassIntensityList();
-
-							for (int k = 0; k < peakList[0].length; k++) {
-								float mz = (float) peakList[0][k];
-								float intensity = (float) peakList[1][k];
-								if (mz >= lowest_mz && mz <= highest_mz && intensity > 0) {
-									int row = pos_in_strip;
-
-									if(matrix.size() <= row || (matrix.size() > row && matrix.get(row) == null)){
-										matrix.add(row, new ArrayList<MzIntensity>());
-									}
-									matrix.get(row).add(new MzIntensity(mz, intensity));
-									num_nonzero++;
-								}
-							}
-						}
-						pos_in_strip++;
-						saved_spectra++;
-						mzRTreeDB.insertMapScanToRT(absScanNumber, rT, prepStatMapScanToRT); 
-						// if a strip is ready then store it!
-						if (pos_in_strip >= max_spectra_per_strip) {
-							System.gc();
-							long startTime = System.nanoTime();
-							save_single_strip(matrix, max_spectra_per_strip, strip_number,swathPrecursor);
-							long endTime = System.nanoTime();
-							long totTime=endTime-startTime;
-							System.gc();
-//								java.lang.Runtime.getRuntime().exec("purge");
-							strip_number++;
-							pos_in_strip = 0;
-							mzValues.clear();
-							matrix.clear();
-						}
-//					}
-					groupNumber++;
-					current_spectrum=currentSwath+groupNumber*getTotSwathNumber();
-				}
 
-				mzRTreeDB.setMetadata(lowest_mz,highest_mz,spectra_number);
-				// Save the last strip even if it is not full.
-				if (pos_in_strip > 0) {
-					System.gc();
-					long startTime = System.nanoTime();
-					save_single_strip(matrix, max_spectra_per_strip, strip_number,swathPrecursor);
-					long endTime = System.nanoTime();
-					long totTime=endTime-startTime;
-					mzValues.clear();
-					matrix.clear();
-					System.gc();
-//						java.lang.Runtime.getRuntime().exec("purge");
+					String retentionTime = scanHeader.getRetentionTime();
+					rT= Float.parseFloat(retentionTime
+							.substring(2, retentionTime.length() - 1));
+
+					float[][] peakList = null;
+					if (scanHeader.getPeaksCount() != -1) {
+						// Only for JRAP 3
+						peakList = scanParser.getMassIntensityList();
+						//Only for JRAP 4 double [][] peakList =
+//						double[][] peakList = scanParser.getMassIntensityList();
+					}
+					add_scan(swathStrip, scanHeader.getNum(), rT, peakList == null ? null : peakList[0], peakList == null ? null : peakList[1]);
 				}
 
-				prepStatMapScanToRT.executeBatch();
-				connToMzRTreeDB.commit();
-				prepStatMapScanToRT.clearBatch();
-				prepStatMapScanToRT.close();
+				// Save the last strip of each swath even if it is not full.
+				save_last_strips();
+			} finally {
+				stop_strip_writer();
+			}
+			end_strips();
 
+		} catch (InterruptedException e) {
+			throw new MzRTreeException("Interrupted while saving strips: " + e);
 		} catch (IOException e) {
-			StringWriter sw = new StringWriter();
-			e.printStackTrace(new PrintWriter(sw));
-			throw new MzRTreeException("Some I/O problems! "
-					+ System.getProperty("line.separator") + "---BEGIN---"
-					+ System.getProperty("line.separator") + sw.toString()
-					+ System.getProperty("line.separator") + "---END---");
+			throw new MzRTreeException("The file of the BBs cannot be written: " + e);
 		}
 		Utils.println("Strips saved!", Utils.PRINT_ALWAYS);
 
 	}
 
+	/**
+	 * Start the strips of all the swaths, for the scans read from the mzXML file or 
+	 * appended by append_scan(..).
+	 */
+	private void start_strips() throws SQLException, IOException, InterruptedException {
+		saved_spectra = 0;
+		start_strip_writer();
+		// one strip under construction for each swath
+		swathStrips = new SwathStrip[getTotSwathNumber()];
+		for (int i = 0; i < swathStrips.length; i++) {
+			swathStrips[i] = new SwathStrip(take_strip_buffer(), i);
+		}
+	}
+
+	/**
+	 * Append a scan to the strip of its swath, and save the strip if it is full. The
+	 * scan must be sorted by mz values: only the peaks in [lowest_mz, highest_mz] with a
+	 * positive intensity are kept.
+	 * 
+	 * @param mzs			the mz values of the peaks (null if the scan has no peaks)
+	 * @param intensities	the intensities of the peaks
+	 */
+	private void add_scan(SwathStrip swathStrip, int absScanNumber, float retentionTime, float[] mzs, float[] intensities) throws MzRTreeException, InterruptedException, SQLException, IOException {
+		StripBuffer buffer = swathStrip.buffer;
+		if (mzs != null) {
+			for (int k = 0; k < mzs.length; k++) {
+				float mz = mzs[k];
+				float intensity = intensities[k];
+				if (mz >= lowest_mz && mz <= highest_mz && intensity > 0) {
+					buffer.add_peak(mz, intensity);
+				}
+			}
+		}
+		buffer.end_spectrum(absScanNumber, retentionTime);
+		saved_spectra++;
+		// if a strip is ready then store it!
+		if (buffer.num_spectra >= max_spectra_per_strip) {
+			save_single_strip(swathStrip);
+		}
+	}
+
+	/**
+	 * Save the last strip of each swath even if it is not full.
+	 */
+	private void save_last_strips() throws MzRTreeException, InterruptedException, SQLException, IOException {
+		for (SwathStrip swathStrip : swathStrips) {
+			if (swathStrip.buffer.num_spectra > 0) {
+				save_single_strip(swathStrip);
+			}
+		}
+	}
+
+	/**
+	 * Save the metadata and the pyramid, once all the strips are stored.
+	 */
+	private void end_strips() throws MzRTreeException, SQLException, IOException {
+		swathStrips = null;
+		spectra_number = saved_spectra;
+		mzRTreeDB.setMetadata(lowest_mz, highest_mz, spectra_number, metadata_mz_error_ppm(), metadata_intensity_rel_error());
+
+		if (options.pyramid_levels > 0) {
+			save_pyramid();
+		}
+	}
+
+	/**
+	 * @return the maximum error on the mz values saved by the codec of the BBs
+	 */
+	private float metadata_mz_error_ppm() {
+		return options.tile_codec == BuildOptions.TILE_CODEC_PPM_QUANTIZED ? PpmQuantizedCodec.max_mz_error_ppm(options.mz_error_ppm) : 0;
+	}
+
+	/**
+	 * @return the maximum relative error on the intensities saved by the codec of the BBs
+	 */
+	private float metadata_intensity_rel_error() {
+		return options.tile_codec == BuildOptions.TILE_CODEC_PPM_QUANTIZED ? PpmQuantizedCodec.INTENSITY_RELATIVE_ERROR : 0;
+	}
+
+	/**
+	 * Create the writer of the strips and, if more than one build thread is required, the
+	 * pool of workers encoding the strips. Workers wait when the writer is behind, and the
+	 * thread reading the mzXML file encodes strips itself when all the workers are busy.  
+	 * */
+	private void start_strip_writer() throws SQLException, IOException {
+		/*
+		 * Each swath fills a buffer while the others are encoded: at most 3 * build_threads
+		 * buffers are owned by the workers (running or queued), plus one encoded by this
+		 * thread when all of them are busy.
+		 */
+		max_strip_buffers = getTotSwathNumber() + 3 * Math.max(options.build_threads, 1) + 1;
+		stripBuffers = new ArrayBlockingQueue<StripBuffer>(max_strip_buffers);
+		allocated_strip_buffers = 0;
+		File tileFile = options.tile_file ? mzRTreeDB.getTileFile() : null;
+		if (options.build_threads > 1) {
+			stripWriter = new StripWriter(mzRTreeDB, 2 * options.build_threads, tileFile);
+			stripWriter.start();
+			stripEncoders = new ThreadPoolExecutor(options.build_threads, options.build_threads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(2 * options.build_threads), new ThreadPoolExecutor.CallerRunsPolicy());
+		} else {
+			stripWriter = new StripWriter(mzRTreeDB, 1, tileFile);
+			stripEncoders = null;
+		}
+		stripWriter.update_metadata(lowest_mz, highest_mz, metadata_mz_error_ppm(), metadata_intensity_rel_error());
+	}
+
+	/**
+	 * Wait for the strips still being encoded or stored.
+	 * 
+	 * @throws MzRTreeException if a strip could not be encoded or stored
+	 * */
+	private void stop_strip_writer() throws MzRTreeException, SQLException, InterruptedException {
+		try {
+			if (stripEncoders != null) {
+				stripEncoders.shutdown();
+				while (!stripEncoders.awaitTermination(1, TimeUnit.MINUTES)) {
+					Utils.println("Waiting for strips to be encoded.", Utils.PRINT_DEBUG);
+				}
+			}
+		} finally {
+			stripWriter.close();
+			stripWriter = null;
+			stripEncoders = null;
+			stripBuffers = null;
+		}
+	}
+
+	/**
+	 * @return an empty StripBuffer, waiting for a worker to release one if all of them are in use.
+	 * */
+	private StripBuffer take_strip_buffer() throws InterruptedException {
+		StripBuffer buffer = stripBuffers.poll();
+		if (buffer == null) {
+			if (allocated_strip_buffers < max_strip_buffers) {
+				allocated_strip_buffers++;
+				return new StripBuffer(max_spectra_per_strip, 1024 * max_spectra_per_strip);
+			}
+			buffer = stripBuffers.take();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Reset a StripBuffer and make it available for a new strip.
+	 * */
+	private void release_strip_buffer(StripBuffer buffer) {
+		buffer.reset();
+		stripBuffers.offer(buffer);
+	}
+
+	/**
+	 * The strip currently under construction for one swath, used by save_strips(..)
+	 * while the mzXML file is read in a single pass.
+	 */
+	private static class SwathStrip {
+		private StripBuffer buffer; // spectra of the current strip
+		private int strip_number = 0;// current strip number
+		private final int swath; // number of the swath (see SwathCatalog)
+
+		private SwathStrip(StripBuffer buffer, int swath) {
+			this.buffer = buffer;
+			this.swath = swath;
+		}
+	}
 
 	/***
-	 * Save a strip in one or more files containing at most
-	 * Utils.MAX_BB_PER_FILE BBs. Data are saved in strip_X_Y.dat where X is the
-	 * strip number and Y a number for distinguishing between the files
-	 * containing the same strip.
+	 * Save the strip under construction of a swath and start a new one. The strip is 
+	 * encoded by encode_strip(..) and stored by the strip writer, either by the calling
+	 * thread or, if options.build_threads > 1, by the pool of workers and the writer thread. 
 	 * 
-	 * @param matrix 		matrix containing the strip
-	 * @param num_spectra 	the number of spectra in the strip (stored in the first num_spectra rows of matrix
-	 * @param strip_number 	the strip number (or ID)
+	 * @param swathStrip 	the swath whose strip is saved
 	 * 
-	 * @throws IOException if some problem while writing the file
-	 * @throws ClassNotFoundException 
+	 * @throws MzRTreeException if a previous strip could not be encoded or stored
+	 * @throws InterruptedException 
 	 * @throws SQLException 
+	 * @throws IOException 
 	 * */
-	private void save_single_strip(ArrayList<ArrayList<MzIntensity>> matrix, int num_spectra,
-			int strip_number, float swathPrecursor) throws IOException, SQLException, ClassNotFoundException {
-		Utils.print("Saving strip " + strip_number + ". ", Utils.PRINT_DEBUG);
+	private void save_single_strip(SwathStrip swathStrip) throws MzRTreeException, InterruptedException, SQLException, IOException {
+		// stop reading scans as soon as a strip could not be encoded or stored
+		stripWriter.checkFailure();
+		final StripBuffer buffer = swathStrip.buffer;
+		final int strip_number = swathStrip.strip_number;
+		final int swath = swathStrip.swath;
+		swathStrip.strip_number++;
+
+		if (stripEncoders == null) {
+			stripWriter.write(encode_strip(buffer, max_spectra_per_strip, strip_number, swath));
+			buffer.reset();
+			return;
+		}
+		swathStrip.buffer = take_strip_buffer();
+		stripEncoders.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					EncodedStrip strip;
+					try {
+						strip = encode_strip(buffer, max_spectra_per_strip, strip_number, swath);
+					} finally {
+						// released even if the strip cannot be encoded, so that the reading thread is never blocked
+						release_strip_buffer(buffer);
+					}
+					stripWriter.put(strip);
+				} catch (Exception e) {
+					stripWriter.fail(e);
+				}
+			}
+		});
+	}
 
-		BBnode cursor = tail;
+	/***
+	 * Save the levels of the pyramid (see PyramidLevel). The scans of each window are read
+	 * back from the BBs at full resolution, one at a time, and added to the rows of all the
+	 * levels: each level is saved as strips of max_spectra_per_strip rows, encoded as the
+	 * strips at full resolution.
+	 * 
+	 * @throws MzRTreeException if the pyramid cannot be saved
+	 * */
+	private void save_pyramid() throws MzRTreeException, SQLException, IOException {
+		Utils.println("Saving " + options.pyramid_levels + " pyramid levels.", Utils.PRINT_ALWAYS);
+		SwathCatalog catalog = mzRTreeDB.getSwathCatalog();
+		ScanIndex index = mzRTreeDB.getScanIndex();
+		PyramidLevel[] levels = new PyramidLevel[options.pyramid_levels];
+		StripWriter[] writers = new StripWriter[levels.length];
+		StripBuffer[] buffers = new StripBuffer[levels.length];
+		try {
+			int scan_bin = 1;
+			float mz_bin = options.pyramid_mz_bin;
+			for (int l = 0; l < levels.length; l++) {
+				scan_bin *= BuildOptions.PYRAMID_FACTOR;
+				levels[l] = new PyramidLevel(l + 1, scan_bin, mz_bin, lowest_mz);
+				mzRTreeDB.createPyramidLevel(levels[l]);
+				writers[l] = new StripWriter(mzRTreeDB, 1, null, l + 1);
+				buffers[l] = new StripBuffer(max_spectra_per_strip, 1024);
+				mz_bin *= BuildOptions.PYRAMID_FACTOR;
+			}
 
-		int old_bb_num = bb_number;
-		/*
-		 * compute_BB(..) appends to the linked list pointed by tail the BBs
-		 * contained in the current strip. In save_single_strip(..) we store in
-		 * the disk the new BBs, that is the BBs contained in the linked list
-		 * starting from cursor and ending in tail.
-		 */
+			for (int swath = 0; swath < catalog.size(); swath++) {
+				int scan_count = index.getScanCount(swath);
+				int[] strip_numbers = new int[levels.length];
+				ScanCursor cursor = mzRTreeDB.swath_cursor(swath, 0, scan_count - 1, 0, Float.MAX_VALUE);
+				while (cursor.next()) {
+					int scan = cursor.getScan();
+					for (int l = 0; l < levels.length; l++) {
+						levels[l].add_scan(scan, cursor.getMzs(), cursor.getIntensities(), cursor.getPeakCount(), highest_mz);
+						if (levels[l].is_row_complete(scan) || scan == scan_count - 1) {
+							levels[l].end_row(buffers[l], index, swath);
+							if (buffers[l].num_spectra >= max_spectra_per_strip || scan == scan_count - 1) {
+								writers[l].write(encode_strip(buffers[l], max_spectra_per_strip, strip_numbers[l]++, swath));
+								buffers[l].reset();
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			for (StripWriter writer : writers) {
+				if (writer != null) writer.close();
+			}
+		}
+	}
+
+	/***
+	 * Compute the BBs of a strip and their binary representation. This method does not 
+	 * use the database and can be called by several threads at the same time.
+	 * 
+	 * @param buffer 		the spectra of the strip
+	 * @param num_spectra 	the maximum number of spectra in a strip
+	 * @param strip_number 	the strip number (or ID)
+	 * @param swath 		the number of the swath containing the strip
+	 * 
+	 * @return the encoded strip, ready to be stored by a StripWriter
+	 * */
+	private EncodedStrip encode_strip(StripBuffer buffer, int num_spectra, int strip_number, int swath) {
+		Utils.print("Saving strip " + strip_number + ". ", Utils.PRINT_DEBUG);
+
+		EncodedStrip strip = new EncodedStrip(swath, Arrays.copyOf(buffer.absScanNumbers, buffer.num_spectra),
+				Arrays.copyOf(buffer.retentionTimes, buffer.num_spectra));
+		if (options.tile_codec == BuildOptions.TILE_CODEC_PPM_QUANTIZED) {
+			// the statistics of the scans and of the BBs are those of the decoded intensities, 
+			// which can be larger than the original ones: BBs are never pruned wrongly by intensity
+			for (int j = 0; j < buffer.size; j++) {
+				buffer.intensities[j] = PpmQuantizedCodec.decoded_intensity(buffer.intensities[j]);
+			}
+		}
+		for (int i = 0; i < buffer.num_spectra; i++) {
+			for (int j = buffer.start(i); j < buffer.end(i); j++) {
+				strip.scanSums[i] += buffer.intensities[j];
+				if (strip.scanMaxs[i] < buffer.intensities[j]) strip.scanMaxs[i] = buffer.intensities[j];
+			}
+			strip.scanCounts[i] = buffer.end(i) - buffer.start(i);
+		}
 		
+		// peaks of each spectrum are sorted by mz
 		float minMz = Float.MAX_VALUE;
 		float maxMz = Float.MIN_VALUE;
-		for(ArrayList<MzIntensity> spectrum : matrix ){
-			MzIntensity minPair = Collections.min(spectrum);
-			MzIntensity maxPair = Collections.max(spectrum);
-			minMz = minPair.getMz() < minMz ? minPair.getMz() : minMz;
-			maxMz = maxPair.getMz() > maxMz ? maxPair.getMz() : maxMz;
+		for (int i = 0; i < buffer.num_spectra; i++) {
+			if (buffer.start(i) < buffer.end(i)) {
+				minMz = buffer.mzs[buffer.start(i)] < minMz ? buffer.mzs[buffer.start(i)] : minMz;
+				maxMz = buffer.mzs[buffer.end(i) - 1] > maxMz ? buffer.mzs[buffer.end(i) - 1] : maxMz;
+			}
 		}
 		
-		compute_BB(matrix, minMz, maxMz, num_spectra, strip_number);
-
 		/*
-		 * The first node of the list pointed by cursor does not contain a BB of
-		 * the current strip; just ignore it. The first BB of the strip is in
-		 * the node pointed by cursor (if any!).
+		 * compute_BB(..) appends to bbs the BBs contained in the current strip. 
 		 */
-		if (cursor.next == null) {
+		ArrayList<BBnode> bbs = new ArrayList<BBnode>();
+		if (buffer.size > 0) {
+			compute_BB(buffer, minMz, maxMz, num_spectra, strip_number, bbs);
+		}
+		if (options.tile_codec == BuildOptions.TILE_CODEC_PPM_QUANTIZED) {
+			// decoded mz values differ from the original ones: the BBs are widened by the 
+			// maximum error, so that a query finds all the BBs with decoded peaks in its range
+			double error = PpmQuantizedCodec.max_mz_error_ppm(options.mz_error_ppm) * 1e-6;
+			for (BBnode bb : bbs) {
+				bb.min_mz = Math.nextAfter((float) (bb.min_mz * (1 - error)), Double.NEGATIVE_INFINITY);
+				bb.max_mz = Math.nextAfter((float) (bb.max_mz * (1 + error)), Double.POSITIVE_INFINITY);
+			}
+		}
+		if (bbs.isEmpty()) {
 			Utils.println("No new BBs in this strip", Utils.PRINT_DEBUG);
-			return;
+			return strip;
 		}
-		cursor = cursor.next;
 
 		/*
-		 * Number of files that have been used for storing the current strip.
-		 * Remember: no more that Utils.MAX_BB_PER_FILE BBs in each file
-		 */
-		int num_file = 0;
-		/* Number of BBs that have been stored */
-		int num_BB = 0;
-		/* First byte position of the current BB in the output file */
-		int start_byte_BB = 0;
-		/* Last byte of the current BB in the output file */
-		int end_byte_BB = 0;
-
-		int count_byte = 0; // the number of bytes required by a BB
-		int k, kk, j; // support variables
-		// an output buffer. 4 is the size in byte of a float. 2 is required by
-		// the sparse case (one float is the value, the other the mz value
-		/*
-		 * For each strip X we save the file strip_X.BB containing info on each
-		 * BB: margins, the name of the file containing it, its position in the
-		 * output file... strip_X.BB is a useless file. We need it only for
-		 * debugging.
+		 * Sparse BBs are saved by the codec chosen in the build options, dense BBs by 
+		 * TileCodecs.DENSE (unless a lossy codec is chosen). Both can be compressed.
 		 */
-		ByteArrayOutputStream binaryBBsData=new ByteArrayOutputStream();
-		Connection connToMzRTreeDB=mzRTreeDB.getConnection();
-		connToMzRTreeDB.setAutoCommit(false);
-		PreparedStatement prepStatBBs = connToMzRTreeDB.prepareStatement("INSERT INTO BBs VALUES (?,?,?,?,?,?,?)");
-		PreparedStatement prepStatData = connToMzRTreeDB.prepareStatement ("INSERT INTO DATA VALUES(?,?)");
-
-		while (cursor != null) { 
-
-			end_byte_BB = 0;
-
-			start_byte_BB = end_byte_BB;
-
-			if (cursor.is_sparse == true) {
-				/* If the BB is sparse, save only the non zero values */
-				binaryBBsData.write(SPARSE_MATRIX);
-				end_byte_BB += 4;
-				byte[] out_buffer = new byte[2 * 4 * (cursor.non_zero_values)];
-				k = cursor.min_rt - strip_number * num_spectra;
-				
-				for (kk = cursor.min_rt; kk <= cursor.max_rt; k++, kk++) {
-					count_byte = 0;
-					ArrayList<MzIntensity> spectrum = matrix.get(k);
-					int mzIdxMin = getMzIdx(cursor.min_mz, spectrum);
-					int mzIdxMax = getMzIdxMax(cursor.max_mz, spectrum);
-
-					
-					for (j = mzIdxMin; j <= mzIdxMax; j++) {
-						try{
-							float curr_mz=spectrum.get(j).getMz();
-//							
-							Utils.intToBytes(Float.floatToIntBits(spectrum.get(j).getMz()), out_buffer, count_byte);
-
-						}catch(ArrayIndexOutOfBoundsException ex){
-							System.out.println("j is " + j);
-							System.out.println("mzIdxMax is " + mzIdxMax);
-							System.out.println("count_byte is " + count_byte);
-							System.out.println("out_buffer size is " + out_buffer.length);
-							Utils.intToBytes(Float.floatToIntBits(spectrum.get(j).getMz()), out_buffer, count_byte);
-						}
+		TileCodec sparse_codec = TileCodecs.SPARSE;
+		TileCodec dense_codec = TileCodecs.DENSE;
+		if (options.tile_codec == BuildOptions.TILE_CODEC_DELTA_VARINT) {
+			sparse_codec = TileCodecs.DELTA_VARINT;
+		} else if (options.tile_codec == BuildOptions.TILE_CODEC_PPM_QUANTIZED) {
+			sparse_codec = dense_codec = new PpmQuantizedCodec(options.mz_error_ppm);
+		}
+		if (options.compress_tiles) {
+			sparse_codec = new DeflateCodec(sparse_codec);
+			dense_codec = new DeflateCodec(dense_codec);
+		}
+		int first_rt = strip_number * num_spectra;
+		for (BBnode cursor : bbs) { 
+			strip.add(cursor, (cursor.is_sparse ? sparse_codec : dense_codec).encode(buffer, cursor, first_rt));
+		}
+		return strip;
+	}
 
-						Utils.intToBytes(Float.floatToIntBits(spectrum.get(j).getIntensity()), out_buffer, count_byte + 4);
-						count_byte += 8;
+	/***
+	 * This methods compute the BBs within a strip. The mz range [minMz, maxMz] is divided in 
+	 * 2^d tiles of equal size, where d is the smallest value such that a tile is not larger
+	 * than Utils.SIZE_MZ_BB; each non empty tile is a BB. Each spectrum of the strip is sorted
+	 * by mz values, hence a single sweep on its peaks assigns them to tiles: the position 
+	 * of the first peak of each tile is saved in the buffer (see StripBuffer.tile_start(..)) 
+	 * and the extremes of the BBs are updated in the same sweep. 
+	 * 
+	 * @param buffer 		the spectra of the strip
+	 * @param minMz 			the smallest mz value in the strip
+	 * @param maxMz 			the biggest mz value in the strip
+	 * @param num_spectra 	the maximum number of spectra in a strip
+	 * @param strip_number 	the strip number (or ID)
+	 * @param bbs 			the list where the BBs are appended, by increasing mz values
+	 * */
+	private void compute_BB(StripBuffer buffer, float minMz, float maxMz, int num_spectra, int strip_number, ArrayList<BBnode> bbs) {
+		int num_tiles = 1;
+		while ((maxMz - minMz) / num_tiles > Utils.SIZE_MZ_BB) {
+			num_tiles *= 2;
+		}
+		float tile_size = (maxMz - minMz) / num_tiles;
+		buffer.set_tiles(num_tiles);
+
+		BBnode[] tiles = new BBnode[num_tiles];
+		int rt_abs = strip_number * num_spectra;
+		for (int i = 0; i < buffer.num_spectra; i++, rt_abs++) {
+			int j = buffer.start(i);
+			int end = buffer.end(i);
+			for (int tile = 0; tile < num_tiles; tile++) {
+				buffer.set_tile_start(i, tile, j);
+				// the last tile also contains maxMz
+				float tile_max = tile == num_tiles - 1 ? Float.POSITIVE_INFINITY : minMz + (tile + 1) * tile_size;
+				if (j < end && buffer.mzs[j] < tile_max) {
+					BBnode bb = tiles[tile];
+					if (bb == null) {
+						bb = tiles[tile] = new BBnode();
+						bb.mz_tile = tile;
+						bb.min_rt = rt_abs;
+						bb.min_mz = buffer.mzs[j];
+						bb.max_mz = buffer.mzs[j];
+						bb.max_intensity = 0;
 					}
-					binaryBBsData.write(Utils.intToBytes(count_byte));
-					if (count_byte > 0){
-						binaryBBsData.write(out_buffer, 0, count_byte);
+					if (bb.min_mz > buffer.mzs[j]) bb.min_mz = buffer.mzs[j];
+					bb.max_rt = rt_abs;
+					int first = j;
+					while (j < end && buffer.mzs[j] < tile_max) {
+						bb.sum_intensity += buffer.intensities[j];
+						if (bb.max_intensity < buffer.intensities[j]) bb.max_intensity = buffer.intensities[j];
+						j++;
 					}
-
-					end_byte_BB += 4 + count_byte;// size of SPARSE_MATRIX is already in, count_byte as written in 4 lines above, and all data
+					if (bb.max_mz < buffer.mzs[j - 1]) bb.max_mz = buffer.mzs[j - 1];
+					bb.non_zero_values += j - first;
 				}
-				mzRTreeDB.insertBBsData(prepStatData,old_bb_num+num_BB,binaryBBsData);
 			}
+			buffer.set_tile_start(i, num_tiles, end);
+		}
 
-			
-			float[] range = mzRTreeDB.getSwathRange(swathPrecursor);
-			float precMin = range[0];
-			float precMax = range[1];
-//			System.out.println("prec " + swathPrecursor + " is in swath: "  + precMin + " - " + precMax);
-			mzRTreeDB.insertBB(old_bb_num+num_BB, cursor.min_rt, cursor.max_rt, cursor.min_mz, cursor.max_mz, precMin, precMax, prepStatBBs);
-			
-			num_BB++;
-			/*
-			 * Let us add a new BB to the list pointed by header and tail
-			 * (global variables) and save the info about the file containing
-			 * the BB
-			 */
-			cursor.file_name[BBnode.STRIP_NUM] = strip_number;
-			cursor.file_name[BBnode.STRIP_SUB_NUM] = num_file - 1;
-			cursor.start_byte = start_byte_BB;
-			cursor.end_byte = end_byte_BB-1;
-			cursor = cursor.next;
-
-			binaryBBsData.reset();
-		}
-		binaryBBsData.close();
-		Utils.println("Added " + (bb_number - old_bb_num) + " new BBs",Utils.PRINT_DEBUG);
-		prepStatData.executeBatch();
-		connToMzRTreeDB.commit();
-		prepStatData.clearBatch();
-		prepStatData.close();
-
-		prepStatBBs.executeBatch();
-		connToMzRTreeDB.commit();
-		prepStatBBs.clearBatch();
-		prepStatBBs.close();
-	}
-	
-	private synchronized int getMzIdx(float mz, ArrayList<MzIntensity> spectrum) {
-		int mzIdx = Collections.binarySearch(spectrum, new Float(mz));
-		if(mzIdx<0) mzIdx = Math.abs(mzIdx)-1;
-		return mzIdx >= spectrum.size() ? spectrum.size() -1 : mzIdx;
+		for (BBnode bb : tiles) {
+			// If the BB is not empty append it to bbs
+			if (bb != null) {
+				set_density(buffer, bb, strip_number * num_spectra);
+				bbs.add(bb);
+			}
+		}
 	}
 
-	private synchronized int getMzIdxMax(float mz, ArrayList<MzIntensity> spectrum) {
-		int mzIdx = Collections.binarySearch(spectrum, new Float(mz));
-		if(mzIdx<0) mzIdx = Math.abs(mzIdx)-1-1; // additional -1 to get 1 position before the insertion point.
-		return mzIdx;		
-	}
 	/***
-	 * This methods compute the BBs within a strip.
+	 * Decide how a BB is saved. The density of a BB is the number of its peaks divided by 
+	 * the size of the matrix with a row for each of its spectra and a column for each 
+	 * distinct mz value among its peaks. If the density is bigger than Utils.DENSITY, 
+	 * the BB is saved as a complete matrix and its mz values are kept in bb.mz_axis.
 	 * 
-	 * @param matrix 		matrix containing the strip
-	 * @param minMz 			column index containing the initial mz value
-	 * @param maxMz 			column index containing the final mz value
-	 * @param num_spectra 	number of spectra in the strip
-	 * @param strip_number 	the strip number (or ID)
+	 * @param buffer 		the spectra of the strip
+	 * @param bb 			a BB computed by compute_BB(..)
+	 * @param first_rt 		the first spectrum of the strip
 	 * */
-	private void compute_BB(ArrayList<ArrayList<MzIntensity>> matrix, float minMz, float maxMz, int num_spectra, int strip_number) {
-		/* Base case: a BB has size at most Utils.SIZE_MZ_BB. */
-		if (maxMz - minMz > Utils.SIZE_MZ_BB) {// Recursive base case
-			compute_BB(matrix, minMz, (maxMz + minMz) / 2, num_spectra, strip_number);
-			compute_BB(matrix, (maxMz + minMz) / 2, maxMz, num_spectra, strip_number);
-		} else {
-			/*
-			 * Let's find the BB extremes: top-left corner (min_rt, min_mz) and
-			 * bottom-right corner (max_rt, max_mz
-			 */
-			int min_rt = Integer.MAX_VALUE;
-			float min_mz = Float.MAX_VALUE;
-			int max_rt = Integer.MIN_VALUE;
-			float max_mz = Float.MIN_VALUE;
-			int non_zero_values = 0;
-			int rt_abs = strip_number * num_spectra;
-			
-			for(int i = 0; i < matrix.size(); i++, rt_abs++){
-				ArrayList<MzIntensity> spectrum = matrix.get(i);
-				int mzIdxMin = getMzIdx(minMz, spectrum);
-				int mzIdxMax = getMzIdx(maxMz, spectrum)-1;
-				for (int j = mzIdxMin; j <= mzIdxMax; j++) {
-					non_zero_values++;
-					if (min_rt > rt_abs) min_rt = rt_abs;
-					if (max_rt < rt_abs) max_rt = rt_abs;
-					float currentMz = spectrum.get(j).getMz();
-					if (min_mz > currentMz) min_mz = currentMz;
-					if (max_mz < currentMz) max_mz = currentMz;
-				}
+	private void set_density(StripBuffer buffer, BBnode bb, int first_rt) {
+		bb.is_sparse = true;
+		int num_rows = bb.max_rt - bb.min_rt + 1;
+		// There are at least as many distinct mz values as peaks in a spectrum of the BB: 
+		// most BBs can be recognized as sparse without looking at their mz values.
+		int max_row = 0;
+		for (int i = bb.min_rt - first_rt; i <= bb.max_rt - first_rt; i++) {
+			max_row = Math.max(max_row, buffer.tile_end(i, bb.mz_tile) - buffer.tile_start(i, bb.mz_tile));
+		}
+		if ((float) bb.non_zero_values / ((float) max_row * num_rows) <= Utils.DENSITY) {
+			return;
+		}
+		float[] mz_axis = new float[bb.non_zero_values];
+		int num_mzs = 0;
+		for (int i = bb.min_rt - first_rt; i <= bb.max_rt - first_rt; i++) {
+			// a dense BB has a single cell for each mz value of a spectrum: BBs with several 
+			// peaks at the same mz value in a spectrum are kept sparse, so that all the peaks
+			// are decoded as they were added
+			for (int j = buffer.tile_start(i, bb.mz_tile) + 1; j < buffer.tile_end(i, bb.mz_tile); j++) {
+				if (buffer.mzs[j] == buffer.mzs[j - 1]) return;
 			}
-		
-			// If the BB is not empty append it to the list pointed by tail
-			if (non_zero_values > 0) {
-				float density = (float) non_zero_values / (float) ((max_mz + 1 - min_mz) * (max_rt + 1 - min_rt));
-				bb_number++;
-				tail.next = new BBnode();
-				tail = tail.next;
-				tail.min_mz = min_mz;
-				tail.max_mz = max_mz;
-				tail.min_rt = min_rt;
-				tail.max_rt = max_rt;
-				tail.is_sparse = true;
-				tail.non_zero_values = non_zero_values;
+			int length = buffer.tile_end(i, bb.mz_tile) - buffer.tile_start(i, bb.mz_tile);
+			System.arraycopy(buffer.mzs, buffer.tile_start(i, bb.mz_tile), mz_axis, num_mzs, length);
+			num_mzs += length;
+		}
+		Arrays.sort(mz_axis);
+		num_mzs = 0;
+		for (int j = 0; j < mz_axis.length; j++) {
+			if (j == 0 || mz_axis[j] != mz_axis[num_mzs - 1]) {
+				mz_axis[num_mzs++] = mz_axis[j];
 			}
 		}
+		if ((float) bb.non_zero_values / ((float) num_mzs * num_rows) > Utils.DENSITY) {
+			bb.is_sparse = false;
+			bb.mz_axis = Arrays.copyOf(mz_axis, num_mzs);
+		}
 	}
 
 	/**
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+/**
+ * Keeps the k most intense peaks visited so far, in a binary min-heap on intensity stored 
+ * in primitive arrays: the root is the least intense of the k peaks, so that a peak is 
+ * compared with it and replaces it in O(log k) only if it is more intense.
+ */
+class PeakHeap implements PeakVisitor {
+
+	private final int[] scans;
+	private final float[] mzs;
+	private final float[] intensities;
+	private int size = 0;
+
+	protected PeakHeap(int k) {
+		scans = new int[k];
+		mzs = new float[k];
+		intensities = new float[k];
+	}
+
+	@Override
+	public void visit(int scan, float mz, float intensity) {
+		if (size < intensities.length) {
+			// sift the new peak up from the last leaf
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (intensities[parent] <= intensity) break;
+				set(i, scans[parent], mzs[parent], intensities[parent]);
+				i = parent;
+			}
+			set(i, scan, mz, intensity);
+		} else if (size > 0 && intensity > intensities[0]) {
+			replaceMin(scan, mz, intensity);
+		}
+	}
+
+	/**
+	 * @return true if k peaks have been kept
+	 */
+	protected boolean isFull() {
+		return size == intensities.length;
+	}
+
+	/**
+	 * @return the intensity of the least intense peak kept
+	 */
+	protected float min() {
+		return intensities[0];
+	}
+
+	/**
+	 * Replace the root with a peak and sift it down.
+	 */
+	private void replaceMin(int scan, float mz, float intensity) {
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) break;
+			if (child + 1 < size && intensities[child + 1] < intensities[child]) child++;
+			if (intensity <= intensities[child]) break;
+			set(i, scans[child], mzs[child], intensities[child]);
+			i = child;
+		}
+		set(i, scan, mz, intensity);
+	}
+
+	private void set(int i, int scan, float mz, float intensity) {
+		scans[i] = scan;
+		mzs[i] = mz;
+		intensities[i] = intensity;
+	}
+
+	/**
+	 * Empty the heap.
+	 * 
+	 * @return the peaks kept, by decreasing intensity
+	 */
+	protected TopPeaks drain(ScanIndex index, int swath) {
+		int count = size;
+		int[] sorted_scans = new int[count];
+		float[] sorted_mzs = new float[count];
+		float[] sorted_intensities = new float[count];
+		float[] rts = new float[count];
+		// the root is the least intense peak: fill the arrays from the end
+		for (int i = count - 1; i >= 0; i--) {
+			sorted_scans[i] = scans[0];
+			sorted_mzs[i] = mzs[0];
+			sorted_intensities[i] = intensities[0];
+			rts[i] = index.getRT(swath, scans[0]);
+			size--;
+			if (size > 0) replaceMin(scans[size], mzs[size], intensities[size]);
+		}
+		return new TopPeaks(sorted_scans, rts, sorted_mzs, sorted_intensities);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.util.Arrays;
+
+/**
+ * The result of a range query as primitive arrays: for each scan of the range, the mz
+ * values and the intensities of its peaks, sorted by mz.
+ *
+ * A PeakMatrix can be passed again to the following queries: its arrays are reused and
+ * grow only when a scan has more peaks than before, so that a query does not allocate
+ * memory once the matrix is large enough. The arrays returned by getMzs(..) and
+ * getIntensities(..) are the internal ones: only their first getPeakCount(..) values
+ * belong to the scan, and they are overwritten by the next query.
+ */
+public class PeakMatrix {
+
+	private static final int INITIAL_ROW_SIZE = 16;
+
+	private int first_scan = 0;
+	private int num_scans = 0;
+	private float[][] mzs = new float[0][];
+	private float[][] intensities = new float[0][];
+	private int[] counts = new int[0];
+
+	//appends the decoded peaks to this matrix, created once so that queries do not allocate it
+	protected final PeakVisitor appender = new PeakVisitor() {
+		@Override
+		public void visit(int scan, float mz, float intensity) {
+			add(scan, mz, intensity);
+		}
+	};
+
+	/**
+	 * Empty the matrix and prepare a row for each scan in [first_scan, first_scan + num_scans).
+	 */
+	protected void reset(int first_scan, int num_scans) {
+		if (num_scans > counts.length) {
+			int old_length = counts.length;
+			mzs = Arrays.copyOf(mzs, num_scans);
+			intensities = Arrays.copyOf(intensities, num_scans);
+			counts = Arrays.copyOf(counts, num_scans);
+			for (int i = old_length; i < num_scans; i++) {
+				mzs[i] = new float[INITIAL_ROW_SIZE];
+				intensities[i] = new float[INITIAL_ROW_SIZE];
+			}
+		}
+		Arrays.fill(counts, 0, num_scans, 0);
+		this.first_scan = first_scan;
+		this.num_scans = num_scans;
+	}
+
+	/**
+	 * Append a peak to the row of its scan.
+	 */
+	protected void add(int scan, float mz, float intensity) {
+		int row = scan - first_scan;
+		int count = counts[row];
+		if (count == mzs[row].length) {
+			mzs[row] = Arrays.copyOf(mzs[row], 2 * count);
+			intensities[row] = Arrays.copyOf(intensities[row], 2 * count);
+		}
+		mzs[row][count] = mz;
+		intensities[row][count] = intensity;
+		counts[row] = count + 1;
+	}
+
+	/**
+	 * @return the scan (relative to the swath) of the first row
+	 */
+	public int getFirstScan() {
+		return first_scan;
+	}
+
+	/**
+	 * @return the number of rows, i.e. the number of scans in the range of the query
+	 */
+	public int getScanCount() {
+		return num_scans;
+	}
+
+	/**
+	 * @return the number of peaks of a row
+	 */
+	public int getPeakCount(int row) {
+		return counts[row];
+	}
+
+	/**
+	 * @return the mz values of a row (only the first getPeakCount(row) values are valid)
+	 */
+	public float[] getMzs(int row) {
+		return mzs[row];
+	}
+
+	/**
+	 * @return the intensities of a row (only the first getPeakCount(row) values are valid)
+	 */
+	public float[] getIntensities(int row) {
+		return intensities[row];
+	}
+}
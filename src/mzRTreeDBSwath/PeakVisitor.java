@@ -0,0 +1,35 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+/**
+ * Receives the peaks decoded from the BBs of an mzRTree, one at a time (see
+ * DBmzRTree.range_query(.., PeakVisitor)). Peaks are pushed as soon as they are decoded,
+ * so that a visitor can aggregate them without storing them.
+ */
+public interface PeakVisitor {
+
+	/**
+	 * @param scan			the scan number (relative to the swath) of the peak
+	 * @param mz			the mz value of the peak
+	 * @param intensity		the intensity of the peak
+	 */
+	void visit(int scan, float mz, float intensity);
+}
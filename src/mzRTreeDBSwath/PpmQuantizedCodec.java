@@ -0,0 +1,193 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A lossy layout for BBs. The mz value of a peak is saved as q = round(ln(mz) / step), with
+ * step = 2 * ppm * 10^-6, so that the decoded value exp(q * step) differs from mz by at most
+ * ppm parts per million, plus MZ_ROUNDING_ERROR_PPM once rounded to a float; within a spectrum q values are sorted and saved as variable-length 
+ * deltas. The intensity is saved in 16 bits as a uniform quantization of its logarithm in 
+ * [MIN_LOG_INTENSITY, MAX_LOG_INTENSITY], which bounds its relative error by 
+ * INTENSITY_RELATIVE_ERROR. The layout is
+ * <pre>
+ * 'PPMQ' | float step | for each spectrum: varint number of bytes | varint n | n varint q deltas | n 16-bit intensities
+ * </pre>
+ * Decoded BBs contain mz and intensity pairs per scan, as the other codecs.
+ */
+class PpmQuantizedCodec implements TileCodec {
+
+	private static final byte[] PPM_QUANTIZED = { 'P', 'P', 'M', 'Q' };
+
+	//range of ln(intensity) that can be saved: intensities are clamped into [e^-10, e^40]
+	private static final double MIN_LOG_INTENSITY = -10;
+	private static final double MAX_LOG_INTENSITY = 40;
+	private static final double LOG_INTENSITY_STEP = (MAX_LOG_INTENSITY - MIN_LOG_INTENSITY) / 0xFFFF;
+	//maximum relative error of a decoded intensity (in the range above)
+	protected static final float INTENSITY_RELATIVE_ERROR = (float) Math.expm1(LOG_INTENSITY_STEP / 2);
+	//smallest error on mz values, such that q fits into an int for mz values up to 10^5
+	protected static final float MIN_MZ_ERROR_PPM = 0.01F;
+	//relative error of a decoded mz value rounded to a float (half an ulp), in ppm
+	protected static final float MZ_ROUNDING_ERROR_PPM = (float) (Math.ulp(1F) / 2 * 1e6);
+
+	private final float mz_error_ppm;
+	private final double step;
+
+	/**
+	 * @param mz_error_ppm	the maximum error on mz values, in ppm (at least MIN_MZ_ERROR_PPM)
+	 */
+	protected PpmQuantizedCodec(float mz_error_ppm) {
+		if (!(mz_error_ppm >= MIN_MZ_ERROR_PPM)) {
+			throw new IllegalArgumentException("The mz error must be at least " + MIN_MZ_ERROR_PPM + " ppm: " + mz_error_ppm);
+		}
+		this.mz_error_ppm = mz_error_ppm;
+		this.step = (float) (2 * mz_error_ppm * 1e-6);
+	}
+
+	/**
+	 * @return the maximum error on decoded mz values, in ppm, including their rounding to a float
+	 */
+	protected float mz_error_ppm() {
+		return max_mz_error_ppm(mz_error_ppm);
+	}
+
+	/**
+	 * @param mz_error_ppm	the error required on mz values, in ppm
+	 * @return the maximum error on decoded mz values, in ppm, including their rounding to a float
+	 */
+	protected static float max_mz_error_ppm(float mz_error_ppm) {
+		return mz_error_ppm + MZ_ROUNDING_ERROR_PPM;
+	}
+
+	@Override
+	public byte[] tag() {
+		return PPM_QUANTIZED;
+	}
+
+	private int quantize_mz(float mz) {
+		return (int) Math.round(Math.log(mz) / step);
+	}
+
+	private static int quantize_intensity(float intensity) {
+		long u = Math.round((Math.log(intensity) - MIN_LOG_INTENSITY) / LOG_INTENSITY_STEP);
+		return (int) Math.max(0, Math.min(0xFFFF, u));
+	}
+
+	private static float dequantize_intensity(int u) {
+		return (float) Math.exp(MIN_LOG_INTENSITY + u * LOG_INTENSITY_STEP);
+	}
+
+	/**
+	 * @return the value of an intensity once saved and decoded by this codec
+	 */
+	protected static float decoded_intensity(float intensity) {
+		return dequantize_intensity(quantize_intensity(intensity));
+	}
+
+	@Override
+	public byte[] encode(StripBuffer buffer, BBnode bb, int first_rt) {
+		// first compute the size of the BB
+		int size = PPM_QUANTIZED.length + 4;
+		for (int k = bb.min_rt - first_rt; k <= bb.max_rt - first_rt; k++) {
+			int row_bytes = row_size(buffer, k, bb.mz_tile);
+			size += Utils.varintSize(row_bytes) + row_bytes;
+		}
+
+		byte[] out_buffer = new byte[size];
+		System.arraycopy(PPM_QUANTIZED, 0, out_buffer, 0, PPM_QUANTIZED.length);
+		Utils.intToBytes(Float.floatToIntBits((float) step), out_buffer, PPM_QUANTIZED.length);
+		int pointer = PPM_QUANTIZED.length + 4;
+		for (int k = bb.min_rt - first_rt; k <= bb.max_rt - first_rt; k++) {
+			int start = buffer.tile_start(k, bb.mz_tile);
+			int end = buffer.tile_end(k, bb.mz_tile);
+			pointer = Utils.intToVarint(row_size(buffer, k, bb.mz_tile), out_buffer, pointer);
+			pointer = Utils.intToVarint(end - start, out_buffer, pointer);
+			int previous = 0;
+			for (int j = start; j < end; j++) {
+				int q = quantize_mz(buffer.mzs[j]);
+				pointer = Utils.intToVarint(q - previous, out_buffer, pointer);
+				previous = q;
+			}
+			for (int j = start; j < end; j++) {
+				int u = quantize_intensity(buffer.intensities[j]);
+				out_buffer[pointer++] = (byte) (u >>> 8);
+				out_buffer[pointer++] = (byte) u;
+			}
+		}
+		return out_buffer;
+	}
+
+	/**
+	 * @return the number of bytes required by the peaks of a tile of the k-th spectrum
+	 */
+	private int row_size(StripBuffer buffer, int k, int tile) {
+		int start = buffer.tile_start(k, tile);
+		int end = buffer.tile_end(k, tile);
+		int size = Utils.varintSize(end - start) + 2 * (end - start);
+		int previous = 0;
+		for (int j = start; j < end; j++) {
+			int q = quantize_mz(buffer.mzs[j]);
+			size += Utils.varintSize(q - previous);
+			previous = q;
+		}
+		return size;
+	}
+
+	@Override
+	public void decode(ByteBuffer data, int min_scan_BB, int max_scan_BB,
+			int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor) {
+		//the step used when the BB was saved
+		double step = data.getFloat(data.position() + PPM_QUANTIZED.length);
+		int buffer_pointer = data.position() + PPM_QUANTIZED.length + 4;
+
+		int start_scan = scan_i >= min_scan_BB ? scan_i : min_scan_BB; 
+		int end_scan = scan_f <= max_scan_BB ? scan_f: max_scan_BB;
+
+		//jump the first rows since they do not contain interesting data
+		for (int scan = min_scan_BB; scan < start_scan; scan++) {
+			int row_bytes = Utils.varintToInt(data, buffer_pointer);
+			buffer_pointer += Utils.varintSize(row_bytes) + row_bytes;
+		}
+
+		for (int scan = start_scan; scan <= end_scan; scan++) {
+			int row_bytes = Utils.varintToInt(data, buffer_pointer);
+			buffer_pointer += Utils.varintSize(row_bytes);
+			int end_pointer = buffer_pointer + row_bytes;
+			int num_peaks = Utils.varintToInt(data, buffer_pointer);
+			buffer_pointer += Utils.varintSize(num_peaks);
+			//intensities are saved after the mz values
+			int intensity_pointer = end_pointer - 2 * num_peaks;
+			int q = 0;
+			for (int j = 0; j < num_peaks; j++) {
+				int delta = Utils.varintToInt(data, buffer_pointer);
+				buffer_pointer += Utils.varintSize(delta);
+				q += delta;
+				float curr_mz = (float) Math.exp(q * step);
+				if (curr_mz > mzf) break;
+				if (curr_mz > mzi) {
+					int u = data.getChar(intensity_pointer + 2 * j);
+					visitor.visit(scan, curr_mz, dequantize_intensity(u));
+				}
+			}
+			buffer_pointer = end_pointer;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+/**
+ * A level of the pyramid of an mzRTree (see BuildOptions.pyramid_levels): the spectra of 
+ * each window downsampled into bins of scan_bin consecutive scans and mz_bin Th, starting 
+ * from mz_origin. The intensity of a bin is the sum of the intensities of its peaks. 
+ * 
+ * The binned rows of a window are stored as the spectra of a window at full resolution
+ * (strips of BBs in the BBs_L<level> and DATA_L<level> tables, see StripWriter): the k-th
+ * row contains the scans [k*scan_bin, (k+1)*scan_bin) of the window and has a peak at
+ * the center of each non empty bin. The geometry of the levels is kept in the PYRAMID table.
+ */
+class PyramidLevel {
+
+	protected final int level;
+	protected final int scan_bin;
+	protected final float mz_bin;
+	protected final float mz_origin;
+
+	//the bins of the row being built (only while the pyramid is built)
+	private float[] row = null;
+	private int first_bin, last_bin; //non empty bins of the row
+	private int row_first_scan = -1; //first scan of the row, -1 if the row is empty
+
+	protected PyramidLevel(int level, int scan_bin, float mz_bin, float mz_origin) {
+		this.level = level;
+		this.scan_bin = scan_bin;
+		this.mz_bin = mz_bin;
+		this.mz_origin = mz_origin;
+	}
+
+	/**
+	 * @return the bin of an mz value
+	 */
+	protected int bin(float mz) {
+		return (int) ((mz - mz_origin) / mz_bin);
+	}
+
+	/**
+	 * @return the mz value of the center of a bin
+	 */
+	protected float center(int bin) {
+		return mz_origin + (bin + 0.5f) * mz_bin;
+	}
+
+	/**
+	 * Add the peaks of a scan to the row being built.
+	 * 
+	 * @param scan			the scan, relative to the window
+	 * @param highest_mz	the biggest mz value of the mzRTree
+	 */
+	protected void add_scan(int scan, float[] mzs, float[] intensities, int count, float highest_mz) {
+		if (row == null) {
+			row = new float[bin(highest_mz) + 1];
+			first_bin = row.length;
+			last_bin = -1;
+		}
+		if (row_first_scan < 0) row_first_scan = scan;
+		for (int i = 0; i < count; i++) {
+			int bin = Math.min(Math.max(bin(mzs[i]), 0), row.length - 1);
+			row[bin] += intensities[i];
+			if (bin < first_bin) first_bin = bin;
+			if (bin > last_bin) last_bin = bin;
+		}
+	}
+
+	/**
+	 * @return true if the next scan of the window starts a new row
+	 */
+	protected boolean is_row_complete(int scan) {
+		return (scan + 1) % scan_bin == 0;
+	}
+
+	/**
+	 * Append the row being built to a strip, as a spectrum, and start a new row. Empty 
+	 * rows are appended too, so that the k-th spectrum of the strips is the k-th row.
+	 * 
+	 * @param index		the scans of the windows, to give each row the scan number and the
+	 * 					retention time of its first scan
+	 */
+	protected void end_row(StripBuffer buffer, ScanIndex index, int swath) {
+		for (int bin = first_bin; bin <= last_bin; bin++) {
+			if (row[bin] > 0) {
+				buffer.add_peak(center(bin), row[bin]);
+				row[bin] = 0;
+			}
+		}
+		first_bin = row == null ? 0 : row.length;
+		last_bin = -1;
+		buffer.end_spectrum(index.getAbsScanNumber(swath, row_first_scan), index.getRT(swath, row_first_scan));
+		row_first_scan = -1;
+	}
+}
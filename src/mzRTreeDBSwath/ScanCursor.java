@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Iterates over the scans of a range query one scan at a time (see DBmzRTree.scan_cursor(..)),
+ * so that the result of a query over a whole window is never in memory at once.
+ *
+ * Only the coordinates of the BBs are read when the cursor is created. BBs are then
+ * decoded by increasing scan, one group at a time: a group is made of BBs whose scan
+ * ranges overlap, i.e. the BBs of a strip. Once a group is decoded, its scans are
+ * complete and are returned by next(), so that memory is bounded by the peaks of a group.
+ *
+ * <pre>
+ * ScanCursor cursor = mzRTreeDB.scan_cursor(scan_i, scan_f, mzi, mzf, mzPrecursor);
+ * while (cursor.next()) {
+ *     float[] mzs = cursor.getMzs(); // first cursor.getPeakCount() values
+ *     ...
+ * }
+ * </pre>
+ *
+ * A cursor is used by a single thread.
+ */
+public class ScanCursor {
+
+	//maximum number of empty scans prepared at once
+	private static final int MAX_EMPTY_SCANS = 256;
+
+	private final DBmzRTree mzRTreeDB;
+	private final int swath;
+	private final int scan_f;
+	private final float mzi, mzf;
+	//the BBs of the query, by increasing min_rt, and the next one to decode
+	private final List<BBnode> bbs;
+	private int next_bb = 0;
+
+	//scans decoded and not returned yet
+	private final PeakMatrix buffer = new PeakMatrix();
+	private int buffer_last;
+	//the current scan and its row in the buffer
+	private int scan;
+	private int row;
+
+	/**
+	 * @param swath		the window of the query (-1 if there is none)
+	 * @param bbs		the BBs of the window intersecting the range
+	 */
+	protected ScanCursor(DBmzRTree mzRTreeDB, int swath, int scan_i, int scan_f, float mzi, float mzf, List<BBnode> bbs) {
+		this.mzRTreeDB = mzRTreeDB;
+		this.swath = swath;
+		this.scan_f = scan_f;
+		this.mzi = mzi;
+		this.mzf = mzf;
+		this.bbs = new ArrayList<BBnode>(bbs);
+		Collections.sort(this.bbs, new Comparator<BBnode>() {
+			@Override
+			public int compare(BBnode a, BBnode b) {
+				return Integer.compare(a.min_rt, b.min_rt);
+			}
+		});
+		this.scan = scan_i - 1;
+		this.buffer_last = scan_i - 1;
+		this.buffer.reset(scan_i, 0);
+	}
+
+	/**
+	 * Move to the next scan of the range (the first one at the first call). Every scan of
+	 * the range is returned, including scans without peaks.
+	 *
+	 * @return false if there are no more scans
+	 * @throws SQLException
+	 */
+	public boolean next() throws SQLException {
+		if (scan >= scan_f) return false;
+		scan++;
+		if (scan > buffer_last) fill();
+		row = scan - buffer.getFirstScan();
+		return true;
+	}
+
+	/**
+	 * Decode the next group of BBs starting from the current scan, or prepare the empty
+	 * scans before it.
+	 */
+	private void fill() throws SQLException {
+		// BBs ending before the current scan have no more peaks to return
+		while (next_bb < bbs.size() && bbs.get(next_bb).max_rt < scan) next_bb++;
+
+		if (next_bb == bbs.size() || bbs.get(next_bb).min_rt > scan) {
+			int first_bb_scan = next_bb == bbs.size() ? scan_f + 1 : bbs.get(next_bb).min_rt;
+			buffer_last = Math.min(Math.min(first_bb_scan - 1, scan_f), scan + MAX_EMPTY_SCANS - 1);
+			buffer.reset(scan, buffer_last - scan + 1);
+			return;
+		}
+
+		// the group of BBs whose scan ranges overlap
+		int first = next_bb;
+		int last_scan = bbs.get(first).max_rt;
+		while (next_bb + 1 < bbs.size() && bbs.get(next_bb + 1).min_rt <= last_scan) {
+			next_bb++;
+			last_scan = Math.max(last_scan, bbs.get(next_bb).max_rt);
+		}
+		next_bb++;
+		buffer_last = Math.min(last_scan, scan_f);
+		buffer.reset(scan, buffer_last - scan + 1);
+
+		// decode the group by increasing mz, so that the peaks of each scan are sorted
+		List<BBnode> group = new ArrayList<BBnode>(bbs.subList(first, next_bb));
+		Collections.sort(group, new Comparator<BBnode>() {
+			@Override
+			public int compare(BBnode a, BBnode b) {
+				return Float.compare(a.min_mz, b.min_mz);
+			}
+		});
+		for (BBnode bb : group) {
+			mzRTreeDB.decode(bb, scan, buffer_last, mzi, mzf, buffer.appender);
+		}
+	}
+
+	/**
+	 * @return the current scan (relative to the window)
+	 */
+	public int getScan() {
+		return scan;
+	}
+
+	/**
+	 * @return the retention time of the current scan
+	 */
+	public float getRT() throws SQLException {
+		return mzRTreeDB.getScanIndex().getRT(swath, scan);
+	}
+
+	/**
+	 * @return the number of peaks of the current scan
+	 */
+	public int getPeakCount() {
+		return buffer.getPeakCount(row);
+	}
+
+	/**
+	 * @return the mz values of the current scan, sorted (only the first getPeakCount()
+	 * 			values are valid, and they are overwritten by the following scans)
+	 */
+	public float[] getMzs() {
+		return buffer.getMzs(row);
+	}
+
+	/**
+	 * @return the intensities of the current scan (only the first getPeakCount() values
+	 * 			are valid, and they are overwritten by the following scans)
+	 */
+	public float[] getIntensities() {
+		return buffer.getIntensities(row);
+	}
+}
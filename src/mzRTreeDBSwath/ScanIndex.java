@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.util.Arrays;
+
+/**
+ * The scans of each SWATH window with their retention times, loaded once from the
+ * SCAN_RT table.
+ *
+ * The scans of a window are numbered as in the BBs table: the k-th scan of the window
+ * (in acquisition order) has the relative scan number k, starting from 0. Retention
+ * times grow with the scan number, so that a range of retention times is converted
+ * into a range of scans with two binary searches.
+ */
+public class ScanIndex {
+
+	//for each window, the scan numbers (as in the mzXML file) and the retention times
+	//of its scans, by relative scan number
+	private final int[][] absScanNumbers;
+	private final float[][] retentionTimes;
+
+	/**
+	 * @param absScanNumbers	the scan numbers of all the windows, sorted
+	 * @param retentionTimes	the retention time of each scan
+	 * @param swathNumber		the number of windows (see SwathCatalog)
+	 */
+	protected ScanIndex(int[] absScanNumbers, float[] retentionTimes, int swathNumber) {
+		int[] sizes = new int[swathNumber];
+		for (int scan : absScanNumbers) {
+			sizes[swath(scan, swathNumber)]++;
+		}
+		this.absScanNumbers = new int[swathNumber][];
+		this.retentionTimes = new float[swathNumber][];
+		for (int swath = 0; swath < swathNumber; swath++) {
+			this.absScanNumbers[swath] = new int[sizes[swath]];
+			this.retentionTimes[swath] = new float[sizes[swath]];
+			sizes[swath] = 0;
+		}
+		for (int i = 0; i < absScanNumbers.length; i++) {
+			int swath = swath(absScanNumbers[i], swathNumber);
+			this.absScanNumbers[swath][sizes[swath]] = absScanNumbers[i];
+			this.retentionTimes[swath][sizes[swath]] = retentionTimes[i];
+			sizes[swath]++;
+		}
+	}
+
+	/**
+	 * @return the window of a scan of the mzXML file (see MzRTree.save_strips(..))
+	 */
+	private static int swath(int absScanNumber, int swathNumber) {
+		return (absScanNumber - 1) % swathNumber;
+	}
+
+	/**
+	 * @return the window of a scan of the mzXML file
+	 */
+	public int getSwath(int absScanNumber) {
+		return swath(absScanNumber, absScanNumbers.length);
+	}
+
+	/**
+	 * @return the scan number, relative to its window, of a scan of the mzXML file, -1 if
+	 * 			the scan is not in the index
+	 */
+	public int getScan(int absScanNumber) {
+		int scan = Arrays.binarySearch(absScanNumbers[getSwath(absScanNumber)], absScanNumber);
+		return scan >= 0 ? scan : -1;
+	}
+
+	/**
+	 * @return the number of scans of a window
+	 */
+	public int getScanCount(int swath) {
+		return absScanNumbers[swath].length;
+	}
+
+	/**
+	 * @return the scan number, as in the mzXML file, of a scan of a window
+	 */
+	public int getAbsScanNumber(int swath, int scan) {
+		return absScanNumbers[swath][scan];
+	}
+
+	/**
+	 * @return the retention time of a scan of a window
+	 */
+	public float getRT(int swath, int scan) {
+		return retentionTimes[swath][scan];
+	}
+
+	/**
+	 * @return the first and the last scan of a window whose retention time is in
+	 * 			[rt_i, rt_f], or null if there is none
+	 */
+	public int[] getScanRange(int swath, float rt_i, float rt_f) {
+		int first = firstScanAfter(swath, rt_i, false);
+		int last = firstScanAfter(swath, rt_f, true) - 1;
+		if (first > last) return null;
+		return new int[]{first, last};
+	}
+
+	/**
+	 * @return the scan of a window whose retention time is the closest to rt, -1 if the
+	 * 			window has no scans
+	 */
+	public int getNearestScan(int swath, float rt) {
+		float[] rts = retentionTimes[swath];
+		int after = firstScanAfter(swath, rt, false);
+		if (after == rts.length) return rts.length - 1;
+		if (after > 0 && rt - rts[after - 1] <= rts[after] - rt) return after - 1;
+		return after;
+	}
+
+	/**
+	 * @return the retention times of the scans of a window in [rt_i, rt_f]
+	 */
+	public float[] getRTs(int swath, float rt_i, float rt_f) {
+		int first = firstScanAfter(swath, rt_i, false);
+		int last = firstScanAfter(swath, rt_f, true) - 1;
+		if (first > last) return new float[0];
+		return Arrays.copyOfRange(retentionTimes[swath], first, last + 1);
+	}
+
+	/**
+	 * @return the first scan of a window whose retention time is bigger than rt (or
+	 * 			equal to rt, if inclusive is false), getScanCount(swath) if there is none
+	 */
+	private int firstScanAfter(int swath, float rt, boolean inclusive) {
+		float[] rts = retentionTimes[swath];
+		int low = 0, high = rts.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (rts[mid] < rt || (inclusive && rts[mid] == rt)) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.util.Arrays;
+
+/**
+ * The statistics of each scan, loaded once from the SCAN_STATS table: the sum and the
+ * maximum of its intensities and its number of peaks, so that the total ion chromatogram
+ * and the base peak chromatogram of a window are computed without reading the BBs. 
+ * Scans are numbered as in ScanIndex.
+ */
+class ScanStats {
+
+	//for each window, the statistics of its scans by relative scan number
+	private final float[][] sums;
+	private final float[][] maxs;
+	private final int[][] counts;
+
+	/**
+	 * @param index				the scans of the windows
+	 * @param absScanNumbers	the scan numbers of the statistics
+	 */
+	protected ScanStats(ScanIndex index, int swathNumber, int[] absScanNumbers, float[] sums, float[] maxs, int[] counts) {
+		this.sums = new float[swathNumber][];
+		this.maxs = new float[swathNumber][];
+		this.counts = new int[swathNumber][];
+		for (int swath = 0; swath < swathNumber; swath++) {
+			this.sums[swath] = new float[index.getScanCount(swath)];
+			this.maxs[swath] = new float[index.getScanCount(swath)];
+			this.counts[swath] = new int[index.getScanCount(swath)];
+		}
+		for (int i = 0; i < absScanNumbers.length; i++) {
+			int swath = index.getSwath(absScanNumbers[i]);
+			int scan = index.getScan(absScanNumbers[i]);
+			if (scan < 0) continue; // no retention time: not a scan of the mzRTree
+			this.sums[swath][scan] = sums[i];
+			this.maxs[swath][scan] = maxs[i];
+			this.counts[swath][scan] = counts[i];
+		}
+	}
+
+	/**
+	 * @param aggregation	Chromatogram.SUM or Chromatogram.MAX
+	 * @return the sums or the maximums of the intensities of the scans of a window in [scan_i, scan_f]
+	 */
+	protected float[] get(int swath, int scan_i, int scan_f, int aggregation) {
+		if (aggregation == Chromatogram.SUM) return Arrays.copyOfRange(sums[swath], scan_i, scan_f + 1);
+		if (aggregation == Chromatogram.MAX) return Arrays.copyOfRange(maxs[swath], scan_i, scan_f + 1);
+		throw new IllegalArgumentException("Unknown aggregation: " + aggregation);
+	}
+
+	/**
+	 * @return the numbers of peaks of the scans of a window in [scan_i, scan_f]
+	 */
+	protected int[] getPeakCounts(int swath, int scan_i, int scan_f) {
+		return Arrays.copyOfRange(counts[swath], scan_i, scan_f + 1);
+	}
+}
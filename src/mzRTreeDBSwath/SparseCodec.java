@@ -0,0 +1,98 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * The original sparse layout of a BB: only non zero values are saved. The layout is
+ * <pre>
+ * 'SPAR' | for each spectrum: int number of bytes | (float mz, float intensity) for each peak
+ * </pre>
+ */
+class SparseCodec implements TileCodec {
+
+	private static final byte[] SPARSE_MATRIX = { 'S', 'P', 'A', 'R' };
+
+	@Override
+	public byte[] tag() {
+		return SPARSE_MATRIX;
+	}
+
+	@Override
+	public byte[] encode(StripBuffer buffer, BBnode bb, int first_rt) {
+		/* each value requires 8 bytes (mz and intensity), each spectrum 4 bytes for its length */
+		byte[] out_buffer = new byte[SPARSE_MATRIX.length + 4 * (bb.max_rt - bb.min_rt + 1) + 2 * 4 * bb.non_zero_values];
+		System.arraycopy(SPARSE_MATRIX, 0, out_buffer, 0, SPARSE_MATRIX.length);
+		int pointer = SPARSE_MATRIX.length;
+
+		for (int k = bb.min_rt - first_rt; k <= bb.max_rt - first_rt; k++) {
+			int count_byte = 0;
+			// the peaks of the k-th spectrum in the BB, as found by compute_BB(..)
+			int mzIdxMax = buffer.tile_end(k, bb.mz_tile);
+			for (int j = buffer.tile_start(k, bb.mz_tile); j < mzIdxMax; j++) {
+				Utils.intToBytes(Float.floatToIntBits(buffer.mzs[j]), out_buffer, pointer + 4 + count_byte);
+				Utils.intToBytes(Float.floatToIntBits(buffer.intensities[j]), out_buffer, pointer + 4 + count_byte + 4);
+				count_byte += 8;
+			}
+			Utils.intToBytes(count_byte, out_buffer, pointer);
+			pointer += 4 + count_byte;
+		}
+		return out_buffer;
+	}
+
+	@Override
+	public void decode(ByteBuffer data, int min_scan_BB, int max_scan_BB,
+			int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor) {
+		//all the values have 4 bytes: read them through typed views of the BB,
+		//whose index i is the value in bytes [4*i, 4*i+4) of the BB
+		IntBuffer ints = data.asIntBuffer();
+		FloatBuffer floats = data.asFloatBuffer();
+		int pointer = 1; // skip SPARSE_MATRIX 
+
+		//from which rt do we start?
+		int start_scan = scan_i >= min_scan_BB ? scan_i : min_scan_BB; 
+		//in which rt do we finish?
+		int end_scan = scan_f <= max_scan_BB ? scan_f: max_scan_BB;
+
+		//jump the first rows since they do not contain interesting data
+		for (int scan = min_scan_BB; scan < start_scan; scan++) {
+			pointer += 1 + ints.get(pointer) / 4; // length of a scan (spectrum)
+		}
+
+		for (int scan = start_scan; scan <= end_scan; scan++) {
+			int num_values = ints.get(pointer) / 4;
+			pointer++;
+			int end_pointer = pointer + num_values;
+			for (; pointer < end_pointer; pointer += 2) {
+				float curr_mz = floats.get(pointer);
+				//peaks are sorted by mz: the remaining ones are not of interest
+				if (curr_mz > mzf) break;
+				//copy only intensities of the mz values in the range of interest
+				if (curr_mz > mzi) {
+					visitor.visit(scan, curr_mz, floats.get(pointer + 1));
+				}
+			}
+			pointer = end_pointer;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+/**
+ * A whole scan of a SWATH window (see DBmzRTree.spectrum(..) and DBmzRTree.cycle(..)): 
+ * its peaks, sorted by mz, as primitive arrays.
+ */
+public class Spectrum {
+
+	private final int swath;
+	private final int scan;
+	private final float rt;
+	private final float[] mzs;
+	private final float[] intensities;
+
+	protected Spectrum(int swath, int scan, float rt, float[] mzs, float[] intensities) {
+		this.swath = swath;
+		this.scan = scan;
+		this.rt = rt;
+		this.mzs = mzs;
+		this.intensities = intensities;
+	}
+
+	/**
+	 * @return the window of the scan (see SwathCatalog), 0 for MS1 scans
+	 */
+	public int getSwath() {
+		return swath;
+	}
+
+	/**
+	 * @return the scan, relative to the window
+	 */
+	public int getScan() {
+		return scan;
+	}
+
+	/**
+	 * @return the retention time of the scan
+	 */
+	public float getRT() {
+		return rt;
+	}
+
+	public float[] getMzs() {
+		return mzs;
+	}
+
+	public float[] getIntensities() {
+		return intensities;
+	}
+}
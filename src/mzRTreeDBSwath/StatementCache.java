@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+/**
+ * The prepared statements of a connection: each query is prepared (parsed and planned
+ * by SQLite) the first time it is used and then reused with new parameters.
+ *
+ * A result set of a statement is valid until the statement is executed again or the
+ * cache is closed; callers close it as soon as they have read it. A StatementCache is
+ * used by a single thread at a time, like its connection.
+ */
+class StatementCache {
+
+	private final Connection connection;
+	private final HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+	protected StatementCache(Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * @param sql	a query, with a '?' for each parameter
+	 *
+	 * @return the statement of the query, with no parameter bound
+	 * @throws SQLException
+	 */
+	protected PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement == null) {
+			statement = connection.prepareStatement(sql);
+			statements.put(sql, statement);
+		} else {
+			statement.clearParameters();
+		}
+		return statement;
+	}
+
+	/**
+	 * Close all the statements (and their result sets). The connection is not closed.
+	 *
+	 * @throws SQLException
+	 */
+	protected void close() throws SQLException {
+		SQLException failure = null;
+		for (PreparedStatement statement : statements.values()) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				if (failure == null) failure = e;
+			}
+		}
+		statements.clear();
+		if (failure != null) throw failure;
+	}
+}
@@ -0,0 +1,145 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.util.Arrays;
+
+/**
+ * This class contains the spectra of a strip while an mzRTree is built. Peaks are stored in
+ * two primitive arrays (mz and intensity values), spectrum after spectrum: the peaks of the 
+ * i-th spectrum of the strip are in positions [scanOffsets[i], scanOffsets[i+1]). Peaks of a 
+ * spectrum must be added by increasing mz values.
+ * 
+ * A StripBuffer is reset and reused for the next strip, so that arrays are allocated only 
+ * while they grow up to the size of the biggest strip.
+ */
+class StripBuffer {
+
+	//peaks of the strip
+	protected float[] mzs;
+	protected float[] intensities;
+	//scanOffsets[i] is the position of the first peak of the i-th spectrum
+	protected int[] scanOffsets;
+	//scan number (as in the mzXML file) and retention time of the spectra of the strip
+	protected int[] absScanNumbers;
+	protected float[] retentionTimes;
+	//number of spectra in the strip
+	protected int num_spectra = 0;
+	//number of peaks in the strip
+	protected int size = 0;
+	//position of the first peak of each mz tile of each spectrum (see MzRTree.compute_BB(..)):
+	//the peaks of the t-th tile of the i-th spectrum are in [tileStarts[i*(num_tiles+1)+t], tileStarts[i*(num_tiles+1)+t+1])
+	private int[] tileStarts = new int[0];
+	private int num_tiles = 0;
+
+	/**
+	 * @param max_spectra	the maximum number of spectra in a strip
+	 * @param peaks			the initial capacity for peaks (arrays grow if required)
+	 */
+	protected StripBuffer(int max_spectra, int peaks) {
+		mzs = new float[peaks];
+		intensities = new float[peaks];
+		scanOffsets = new int[max_spectra + 1];
+		absScanNumbers = new int[max_spectra];
+		retentionTimes = new float[max_spectra];
+	}
+
+	/**
+	 * Add a peak to the current spectrum.
+	 */
+	protected void add_peak(float mz, float intensity) {
+		if (size == mzs.length) {
+			mzs = Arrays.copyOf(mzs, 2 * size);
+			intensities = Arrays.copyOf(intensities, 2 * size);
+		}
+		mzs[size] = mz;
+		intensities[size] = intensity;
+		size++;
+	}
+
+	/**
+	 * Close the current spectrum: the peaks added since the last call belong to it.
+	 */
+	protected void end_spectrum(int absScanNumber, float retentionTime) {
+		if (num_spectra == absScanNumbers.length) {
+			absScanNumbers = Arrays.copyOf(absScanNumbers, 2 * num_spectra);
+			retentionTimes = Arrays.copyOf(retentionTimes, 2 * num_spectra);
+			scanOffsets = Arrays.copyOf(scanOffsets, 2 * num_spectra + 1);
+		}
+		absScanNumbers[num_spectra] = absScanNumber;
+		retentionTimes[num_spectra] = retentionTime;
+		num_spectra++;
+		scanOffsets[num_spectra] = size;
+	}
+
+	/**
+	 * @return the position of the first peak of the i-th spectrum
+	 */
+	protected int start(int i) {
+		return scanOffsets[i];
+	}
+
+	/**
+	 * @return the position following the last peak of the i-th spectrum
+	 */
+	protected int end(int i) {
+		return scanOffsets[i + 1];
+	}
+
+	/**
+	 * Set the number of mz tiles in which spectra are partitioned.
+	 */
+	protected void set_tiles(int num_tiles) {
+		this.num_tiles = num_tiles;
+		if (tileStarts.length < num_spectra * (num_tiles + 1)) {
+			tileStarts = new int[num_spectra * (num_tiles + 1)];
+		}
+	}
+
+	/**
+	 * Set the position of the first peak of a tile of the i-th spectrum. The position of the
+	 * end of the last tile is set with tile==num_tiles.
+	 */
+	protected void set_tile_start(int i, int tile, int position) {
+		tileStarts[i * (num_tiles + 1) + tile] = position;
+	}
+
+	/**
+	 * @return the position of the first peak of a tile of the i-th spectrum
+	 */
+	protected int tile_start(int i, int tile) {
+		return tileStarts[i * (num_tiles + 1) + tile];
+	}
+
+	/**
+	 * @return the position following the last peak of a tile of the i-th spectrum
+	 */
+	protected int tile_end(int i, int tile) {
+		return tileStarts[i * (num_tiles + 1) + tile + 1];
+	}
+
+	/**
+	 * Remove all the spectra. The arrays are kept for the next strip.
+	 */
+	protected void reset() {
+		num_spectra = 0;
+		size = 0;
+	}
+}
@@ -0,0 +1,283 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class stores EncodedStrips into the mzRTree database. It is the only user of the 
+ * connection while an mzRTree is built, so that the BBs of the strips can be computed
+ * by several threads while SQLite keeps a single writer.
+ * 
+ * Strips can be stored directly by the calling thread with write(..), or queued with
+ * put(..) and stored by the thread started with start(). In the latter case close() 
+ * must be called to wait for the queued strips.
+ */
+class StripWriter implements Runnable {
+
+	//marks the end of the queue
+	private static final EncodedStrip END_OF_STRIPS = new EncodedStrip(0, new int[0], new float[0]);
+
+	private final DBmzRTree mzRTreeDB;
+	private final Connection connection;
+	private final PreparedStatement prepStatBBs;
+	private final PreparedStatement prepStatData;
+	//level of the pyramid where strips are stored (see PyramidLevel): the retention times
+	//and the statistics are saved only for the full resolution level 0
+	private final int level;
+	private final PreparedStatement prepStatMapScanToRT;
+	private final PreparedStatement prepStatBBStats;
+	private final PreparedStatement prepStatScanStats;
+	//file of the binary data of the BBs (null if it is saved in the DATA table)
+	private final OutputStream tiles;
+	private final PreparedStatement prepStatTiles;
+	private long tiles_size;
+	private final BlockingQueue<EncodedStrip> queue;
+	private Thread thread = null;
+	//first failure of the writer thread or of a thread producing strips, if any
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	private int bb_number = 0; //number of BBs stored so far, used as ID of the next BB
+	//number of spectra stored so far and, if the METADATA table is updated with each strip, 
+	//the metadata of the mzRTree (see update_metadata(..))
+	private int spectra_number = 0;
+	private boolean metadata = false;
+	private float lowest_mz, highest_mz, mz_error_ppm, intensity_rel_error;
+
+	/**
+	 * @param mzRTreeDB		the database where strips are stored
+	 * @param capacity		the maximum number of strips waiting to be stored by the writer thread
+	 * @param tileFile		the file where the binary data of the BBs is appended (see TileStore),
+	 * 						or null to save it in the DATA table 
+	 * 
+	 * @throws SQLException
+	 * @throws IOException 
+	 */
+	protected StripWriter(DBmzRTree mzRTreeDB, int capacity, File tileFile) throws SQLException, IOException {
+		this(mzRTreeDB, capacity, tileFile, 0);
+	}
+
+	/**
+	 * A writer of the strips of a level of the pyramid (see PyramidLevel), whose BBs are
+	 * stored in the BBs_L<level> and DATA_L<level> tables.
+	 * 
+	 * @param level		the level, 0 for the BBs at full resolution
+	 */
+	protected StripWriter(DBmzRTree mzRTreeDB, int capacity, File tileFile, int level) throws SQLException, IOException {
+		this.mzRTreeDB = mzRTreeDB;
+		this.connection = mzRTreeDB.getConnection();
+		this.connection.setAutoCommit(false);
+		this.level = level;
+		this.prepStatBBs = connection.prepareStatement("INSERT INTO " + DBmzRTree.bbsTable(level) + " VALUES (?,?,?,?,?,?,?)");
+		this.prepStatData = connection.prepareStatement("INSERT INTO " + DBmzRTree.dataTable(level) + " VALUES(?,?)");
+		if (level == 0) {
+			this.prepStatMapScanToRT = connection.prepareStatement("INSERT INTO SCAN_RT VALUES (?,?)");
+			this.prepStatBBStats = connection.prepareStatement("INSERT INTO BB_STATS VALUES (?,?,?,?)");
+			this.prepStatScanStats = connection.prepareStatement("INSERT INTO SCAN_STATS VALUES (?,?,?,?)");
+		} else {
+			this.prepStatMapScanToRT = null;
+			this.prepStatBBStats = null;
+			this.prepStatScanStats = null;
+		}
+		this.queue = new ArrayBlockingQueue<EncodedStrip>(capacity);
+		if (tileFile != null) {
+			this.tiles_size = tileFile.length();
+			this.tiles = new BufferedOutputStream(new FileOutputStream(tileFile, true), 1 << 20);
+			this.prepStatTiles = connection.prepareStatement("INSERT INTO TILES VALUES (?,?,?)");
+		} else {
+			this.tiles = null;
+			this.prepStatTiles = null;
+		}
+	}
+
+	/**
+	 * Update the METADATA table in the transaction of each strip, with the number of 
+	 * spectra stored so far, so that the committed strips can be queried while the next 
+	 * ones are being built.
+	 */
+	protected void update_metadata(float lowest_mz, float highest_mz, float mz_error_ppm, float intensity_rel_error) {
+		this.metadata = true;
+		this.lowest_mz = lowest_mz;
+		this.highest_mz = highest_mz;
+		this.mz_error_ppm = mz_error_ppm;
+		this.intensity_rel_error = intensity_rel_error;
+	}
+
+	/**
+	 * Start the writer thread. From now on the connection must not be used by other threads 
+	 * until close() returns.
+	 */
+	protected void start() {
+		thread = new Thread(this, "mzRTree strip writer");
+		thread.start();
+	}
+
+	/**
+	 * Queue a strip for the writer thread. Blocks while the queue is full.
+	 * 
+	 * @throws MzRTreeException if the writer thread failed
+	 * @throws InterruptedException
+	 */
+	protected void put(EncodedStrip strip) throws MzRTreeException, InterruptedException {
+		checkFailure();
+		queue.put(strip);
+	}
+
+	/**
+	 * Record a failure of a thread producing strips: the build will be aborted by close().
+	 * Only the first failure is kept and reported.
+	 */
+	protected void fail(Throwable e) {
+		failure.compareAndSet(null, e);
+	}
+
+	/**
+	 * Store the BBs, the binary data, the retention times and the statistics of a strip 
+	 * and commit.
+	 * 
+	 * @throws SQLException
+	 * @throws IOException 
+	 */
+	protected void write(EncodedStrip strip) throws SQLException, IOException {
+		SwathCatalog catalog = mzRTreeDB.getSwathCatalog();
+		float precMin = catalog.getMinMz(strip.swath);
+		float precMax = catalog.getMaxMz(strip.swath);
+		for (int i = 0; i < strip.bbs.size(); i++, bb_number++) {
+			BBnode bb = strip.bbs.get(i);
+			byte[] data = strip.bbsData.get(i);
+			if (tiles != null) {
+				tiles.write(data);
+				mzRTreeDB.insertTile(prepStatTiles, bb_number, tiles_size, data.length);
+				tiles_size += data.length;
+			} else {
+				mzRTreeDB.insertBBsData(prepStatData, bb_number, data);
+			}
+			mzRTreeDB.insertBB(bb_number, bb.min_rt, bb.max_rt, bb.min_mz, bb.max_mz, precMin, precMax, prepStatBBs);
+			if (level == 0) {
+				mzRTreeDB.insertBBStats(prepStatBBStats, bb_number, bb.sum_intensity, bb.max_intensity, bb.non_zero_values);
+			}
+		}
+		for (int i = 0; level == 0 && i < strip.absScanNumbers.length; i++) {
+			mzRTreeDB.insertMapScanToRT(strip.absScanNumbers[i], strip.retentionTimes[i], prepStatMapScanToRT);
+			mzRTreeDB.insertScanStats(prepStatScanStats, strip.absScanNumbers[i], strip.scanSums[i], strip.scanMaxs[i], strip.scanCounts[i]);
+		}
+		Utils.println("Added " + strip.bbs.size() + " new BBs", Utils.PRINT_DEBUG);
+		prepStatData.executeBatch();
+		prepStatData.clearBatch();
+		prepStatBBs.executeBatch();
+		prepStatBBs.clearBatch();
+		if (level == 0) {
+			prepStatMapScanToRT.executeBatch();
+			prepStatMapScanToRT.clearBatch();
+			prepStatBBStats.executeBatch();
+			prepStatBBStats.clearBatch();
+			prepStatScanStats.executeBatch();
+			prepStatScanStats.clearBatch();
+		}
+		if (tiles != null) {
+			// the BBs must be in the file before the database points to them
+			tiles.flush();
+			prepStatTiles.executeBatch();
+			prepStatTiles.clearBatch();
+		}
+		spectra_number += strip.absScanNumbers.length;
+		if (metadata && level == 0) {
+			mzRTreeDB.saveMetadata(lowest_mz, highest_mz, spectra_number, mz_error_ppm, intensity_rel_error);
+		}
+		connection.commit();
+	}
+
+	@Override
+	public void run() {
+		try {
+			EncodedStrip strip;
+			while ((strip = queue.take()) != END_OF_STRIPS) {
+				if (failure.get() == null) {
+					try {
+						write(strip);
+					} catch (Exception e) {
+						fail(e);
+					} catch (Error e) {
+						fail(e);
+					}
+				}
+				//after a failure keep on taking strips, so that producers are not blocked
+			}
+		} catch (InterruptedException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Wait for the queued strips (if the writer thread was started) and release the
+	 * prepared statements.
+	 * 
+	 * @throws MzRTreeException if a strip could not be encoded or stored
+	 * @throws SQLException
+	 */
+	protected void close() throws MzRTreeException, SQLException {
+		try {
+			if (thread != null) {
+				try {
+					queue.put(END_OF_STRIPS);
+					thread.join();
+				} catch (InterruptedException e) {
+					fail(e);
+				}
+			}
+			checkFailure();
+		} finally {
+			prepStatBBs.close();
+			prepStatData.close();
+			if (level == 0) {
+				prepStatMapScanToRT.close();
+				prepStatBBStats.close();
+				prepStatScanStats.close();
+			}
+			if (tiles != null) {
+				prepStatTiles.close();
+				try {
+					tiles.close();
+				} catch (IOException e) {
+					throw new MzRTreeException("The file of the BBs cannot be closed: " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @throws MzRTreeException if a strip could not be encoded or stored so far
+	 */
+	protected void checkFailure() throws MzRTreeException {
+		Throwable e = failure.get();
+		if (e != null) {
+			throw new MzRTreeException("Strips cannot be saved: " + e);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * The SWATH windows of an mzRTree, loaded once from the SWATHS table.
+ *
+ * Windows are numbered as they are acquired in a cycle: window 0 is the fake window
+ * of MS1 scans and the i-th scan of the mzXML file belongs to the window
+ * (i-1) % size(). Windows may have different widths and may overlap, or be nested: a
+ * precursor inside several windows belongs to the one whose center is closest (the 
+ * narrowest one if the centers are equally close). The mz range is partitioned once 
+ * into intervals, each one assigned to a single window, and the window of a precursor
+ * is found with a binary search on the intervals.
+ */
+public class SwathCatalog {
+
+	//precursor of MS1 scans (see MSXMLParser)
+	public static final float MS1_PRECURSOR = -1;
+
+	//bounds of the windows, by window number
+	private final float[] minMzs;
+	private final float[] maxMzs;
+
+	//the partition of the mz range covered by the windows, sorted: the interval i is 
+	//[starts[i], starts[i + 1]) (or [starts[i], ends[i]] if it is followed by a gap or is 
+	//the last one) and belongs to the window owners[i]
+	private final float[] starts;
+	private final float[] ends;
+	private final int[] owners;
+
+	/**
+	 * @param minMzs	the lower bound of each window, by window number
+	 * @param maxMzs	the upper bound of each window, by window number
+	 */
+	protected SwathCatalog(final float[] minMzs, final float[] maxMzs) {
+		this.minMzs = minMzs;
+		this.maxMzs = maxMzs;
+
+		// the bounds of all the windows cut the mz range in elementary intervals, each one
+		// inside the same windows
+		float[] bounds = new float[2 * minMzs.length];
+		for (int i = 0; i < minMzs.length; i++) {
+			bounds[2 * i] = minMzs[i];
+			bounds[2 * i + 1] = maxMzs[i];
+		}
+		Arrays.sort(bounds);
+
+		Comparator<Integer> byCenter = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = Float.compare(getCenter(a), getCenter(b));
+				if (c != 0) return c;
+				c = Float.compare(maxMzs[a] - minMzs[a], maxMzs[b] - minMzs[b]);
+				return c != 0 ? c : Integer.compare(a, b);
+			}
+		};
+		ArrayList<float[]> intervals = new ArrayList<float[]>();
+		ArrayList<Integer> windows = new ArrayList<Integer>();
+		for (int b = 0; b + 1 < bounds.length; b++) {
+			float low = bounds[b];
+			float high = bounds[b + 1];
+			if (high <= low) continue;
+			ArrayList<Integer> inside = new ArrayList<Integer>();
+			for (int w = 0; w < minMzs.length; w++) {
+				if (minMzs[w] <= low && maxMzs[w] >= high) inside.add(w);
+			}
+			// the part of the elementary interval closer to the center of each window
+			Collections.sort(inside, byCenter);
+			float piece_start = low;
+			for (int i = 0; i < inside.size(); i++) {
+				int w = inside.get(i);
+				float piece_end = high;
+				int next = i + 1;
+				while (next < inside.size() && getCenter(inside.get(next)) == getCenter(w)) next++;
+				if (next < inside.size()) {
+					piece_end = Math.min(high, (getCenter(w) + getCenter(inside.get(next))) / 2);
+				}
+				i = next - 1;
+				if (piece_end <= piece_start) continue;
+				int last = intervals.size() - 1;
+				if (last >= 0 && windows.get(last) == w && intervals.get(last)[1] == piece_start) {
+					intervals.get(last)[1] = piece_end;
+				} else {
+					intervals.add(new float[]{piece_start, piece_end});
+					windows.add(w);
+				}
+				piece_start = piece_end;
+			}
+		}
+
+		starts = new float[intervals.size()];
+		ends = new float[intervals.size()];
+		owners = new int[intervals.size()];
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = intervals.get(i)[0];
+			ends[i] = intervals.get(i)[1];
+			owners[i] = windows.get(i);
+		}
+	}
+
+	/**
+	 * @return the number of windows, including the fake window of MS1 scans
+	 */
+	public int size() {
+		return minMzs.length;
+	}
+
+	/**
+	 * @param swathPrecursor	a precursor mz, or MS1_PRECURSOR
+	 *
+	 * @return the number of the window containing swathPrecursor, -1 if there is none
+	 */
+	public int getSwath(float swathPrecursor) {
+		if (swathPrecursor == MS1_PRECURSOR) return 0;
+		//last interval starting before swathPrecursor
+		int low = 0, high = starts.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= swathPrecursor) low = mid + 1;
+			else high = mid;
+		}
+		if (low == 0 || swathPrecursor > ends[low - 1]) return -1;
+		return owners[low - 1];
+	}
+
+	/**
+	 * @return the number of the window whose bounds are exactly minMz and maxMz (the 
+	 * 			precursor range of its BBs), -1 if there is none
+	 */
+	protected int getSwath(float minMz, float maxMz) {
+		for (int swath = 0; swath < minMzs.length; swath++) {
+			if (minMzs[swath] == minMz && maxMzs[swath] == maxMz) return swath;
+		}
+		return -1;
+	}
+
+	public float getMinMz(int swath) {
+		return minMzs[swath];
+	}
+
+	public float getMaxMz(int swath) {
+		return maxMzs[swath];
+	}
+
+	/**
+	 * @return the center of the window (with overlapping windows, it can be inside other 
+	 * 			windows too)
+	 */
+	public float getCenter(int swath) {
+		return (minMzs[swath] + maxMzs[swath]) / 2;
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+/**
+ * A region of a SWATH window to be extracted, e.g. a transition of a targeted analysis:
+ * the peaks of the window of precursor whose mz value is in (mz_i, mz_f] and whose
+ * retention time is in [rt_i, rt_f]. See DBmzRTree.range_query(List<Target>).
+ */
+public class Target {
+
+	public final float precursor;
+	public final float mz_i;
+	public final float mz_f;
+	public final float rt_i;
+	public final float rt_f;
+
+	public Target(float precursor, float mz_i, float mz_f, float rt_i, float rt_f) {
+		this.precursor = precursor;
+		this.mz_i = mz_i;
+		this.mz_f = mz_f;
+		this.rt_i = rt_i;
+		this.rt_f = rt_f;
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package mzRTreeDBSwath;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Builds mzRTrees of the same synthetic SWATH run with different build options and checks
+ * that range_query, xic and tic return the same results of the baseline build (sparse BBs,
+ * no compression, sequential build), and that the baseline returns the scans that were
+ * appended. The windows overlap and one of them is nested in another: a query by a
+ * precursor inside several windows must return the scans of the window whose center is
+ * closest.
+ */
+public class TestQueries {
+
+	//window 0 is the fake window of MS1 scans; 1 and 2 overlap, 4 is nested in 2 and has its
+	//same center, 2 and 3 overlap
+	private static final float[] MIN_MZS = {0, 400, 420, 445, 430};
+	private static final float[] MAX_MZS = {25, 425, 450, 470, 440};
+	//a precursor of each window: the center of window 2 belongs to window 4
+	private static final float[] PRECURSORS = {12.5F, 412.5F, 427, 457.5F, 435};
+	//precursors inside several windows, and the window of each of them
+	private static final float[] OVERLAP_PRECURSORS = {422, 424, 433, 446, 448};
+	private static final int[] OVERLAP_SWATHS = {1, 2, 4, 2, 3};
+
+	private static final int SCANS_PER_SWATH = 30;
+	private static final int STRIP_SPECTRA_NUMBER = 8;
+	private static final float LOWEST_MZ = 100;
+	private static final float HIGHEST_MZ = 1000;
+
+	public static void main(String args[]) throws Exception {
+		File dir = File.createTempFile("mzRTree", "");
+		dir.delete();
+		dir.mkdir();
+		try {
+			String windows = new File(dir, "windows.txt").getPath();
+			FileWriter writer = new FileWriter(windows);
+			writer.write((MIN_MZS.length - 1) + "\n");
+			for (int w = 1; w < MIN_MZS.length; w++) writer.write(MIN_MZS[w] + "\t" + MAX_MZS[w] + "\n");
+			writer.close();
+
+			// the peaks of each scan: a dense region, where all the scans have a peak every
+			// 0.1 Th, and random peaks on a grid of 0.01 Th; some scans are empty
+			Random random = new Random(1);
+			int scans = SCANS_PER_SWATH * MIN_MZS.length;
+			float[][] mzs = new float[scans + 1][];
+			float[][] intensities = new float[scans + 1][];
+			for (int abs = 1; abs <= scans; abs++) {
+				TreeSet<Integer> sparse = new TreeSet<Integer>();
+				int count = abs % 17 == 0 ? 0 : 1 + random.nextInt(300);
+				while (sparse.size() < count) sparse.add(random.nextInt(59000));
+				int dense = count == 0 ? 0 : 400;
+				mzs[abs] = new float[dense + count];
+				intensities[abs] = new float[dense + count];
+				for (int j = 0; j < dense; j++) mzs[abs][j] = 300 + j * 0.1F;
+				int j = dense;
+				for (int g : sparse) mzs[abs][j++] = 400 + g * 0.01F;
+				for (j = 0; j < mzs[abs].length; j++) intensities[abs][j] = 1 + (float) Math.exp(random.nextDouble() * 15);
+			}
+
+			DBmzRTree baseline = build(dir, "baseline", windows, new BuildOptions(), mzs, intensities);
+			check_appended(baseline, mzs, intensities);
+			check_overlaps(baseline);
+
+			ArrayList<String> names = new ArrayList<String>();
+			ArrayList<BuildOptions> builds = new ArrayList<BuildOptions>();
+			BuildOptions options = new BuildOptions();
+			options.tile_codec = BuildOptions.TILE_CODEC_DELTA_VARINT;
+			names.add("delta-varint");
+			builds.add(options);
+			options = new BuildOptions();
+			options.compress_tiles = true;
+			names.add("compressed");
+			builds.add(options);
+			options = new BuildOptions();
+			options.tile_file = true;
+			names.add("tile file");
+			builds.add(options);
+			options = new BuildOptions();
+			options.build_threads = 3;
+			names.add("3 threads");
+			builds.add(options);
+			options = new BuildOptions();
+			options.tile_codec = BuildOptions.TILE_CODEC_DELTA_VARINT;
+			options.compress_tiles = true;
+			options.tile_file = true;
+			options.build_threads = 3;
+			names.add("all");
+			builds.add(options);
+			options = new BuildOptions();
+			options.tile_codec = BuildOptions.TILE_CODEC_PPM_QUANTIZED;
+			names.add("ppm quantized");
+			builds.add(options);
+			options = new BuildOptions();
+			options.tile_codec = BuildOptions.TILE_CODEC_PPM_QUANTIZED;
+			options.mz_error_ppm = 0.1F;
+			options.compress_tiles = true;
+			names.add("ppm quantized 0.1, compressed");
+			builds.add(options);
+
+			for (int b = 0; b < builds.size(); b++) {
+				options = builds.get(b);
+				DBmzRTree db = build(dir, "build" + b, windows, options, mzs, intensities);
+				float mz_error_ppm = options.tile_codec == BuildOptions.TILE_CODEC_PPM_QUANTIZED ? PpmQuantizedCodec.max_mz_error_ppm(options.mz_error_ppm) : 0;
+				compare(baseline, db, mz_error_ppm, names.get(b));
+				check_overlaps(db);
+				db.close();
+				System.out.println(names.get(b) + ": same results of the baseline");
+			}
+			baseline.close();
+		} finally {
+			for (File file : dir.listFiles()) file.delete();
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Append the scans to a new mzRTree.
+	 *
+	 * @return the mzRTree, opened read-only
+	 */
+	private static DBmzRTree build(File dir, String name, String windows, BuildOptions options, float[][] mzs, float[][] intensities) throws Exception {
+		String path = new File(dir, name + ".db").getPath();
+		DBmzRTree db = new DBmzRTree(path, true);
+		MzRTree tree = new MzRTree(db, STRIP_SPECTRA_NUMBER, LOWEST_MZ, HIGHEST_MZ, windows, options);
+		for (int abs = 1; abs < mzs.length; abs++) {
+			tree.append_scan(abs, abs * 0.05F, mzs[abs], intensities[abs]);
+		}
+		tree.finish_append();
+		db.close();
+		return new DBmzRTree(path, false, true);
+	}
+
+	/**
+	 * Check that the baseline returns the appended scans: the j-th scan of a window is the
+	 * scan j * (number of windows) + window + 1.
+	 */
+	private static void check_appended(DBmzRTree db, float[][] mzs, float[][] intensities) throws Exception {
+		for (int w = 0; w < MIN_MZS.length; w++) {
+			check(db.getSwathCatalog().getSwath(PRECURSORS[w]) == w, "window of " + PRECURSORS[w]);
+			float[][][] result = rows(db.range_query(0, SCANS_PER_SWATH - 1, 0, Float.MAX_VALUE, PRECURSORS[w]));
+			for (int j = 0; j < SCANS_PER_SWATH; j++) {
+				int abs = j * MIN_MZS.length + w + 1;
+				check(Arrays.equals(result[j][0], mzs[abs]) && Arrays.equals(result[j][1], intensities[abs]),
+						"window " + w + ", scan " + j + ": " + result[j][0].length + " peaks instead of " + mzs[abs].length);
+			}
+		}
+	}
+
+	/**
+	 * Check that a precursor inside several windows queries the window with the closest center.
+	 */
+	private static void check_overlaps(DBmzRTree db) throws Exception {
+		for (int p = 0; p < OVERLAP_PRECURSORS.length; p++) {
+			check(db.getSwathCatalog().getSwath(OVERLAP_PRECURSORS[p]) == OVERLAP_SWATHS[p], "window of " + OVERLAP_PRECURSORS[p]);
+			float[][][] expected = rows(db.range_query(0, SCANS_PER_SWATH - 1, 0, Float.MAX_VALUE, PRECURSORS[OVERLAP_SWATHS[p]]));
+			float[][][] result = rows(db.range_query(0, SCANS_PER_SWATH - 1, 0, Float.MAX_VALUE, OVERLAP_PRECURSORS[p]));
+			compare(expected, result, 0, "precursor " + OVERLAP_PRECURSORS[p]);
+		}
+	}
+
+	/**
+	 * Compare the results of some queries on two mzRTrees of the same scans.
+	 *
+	 * @param mz_error_ppm	the maximum error on mz values of the BBs of db (0 if they are lossless)
+	 */
+	private static void compare(DBmzRTree baseline, DBmzRTree db, float mz_error_ppm, String name) throws Exception {
+		// query bounds are between the points of the grids of the peaks
+		float[][] ranges = {{0, Float.MAX_VALUE}, {310.05F, 320.05F}, {299.95F, 400.005F}, {500.005F, 700.005F}, {990.005F, 1000}};
+		int[][] scan_ranges = {{0, SCANS_PER_SWATH - 1}, {3, 17}, {16, 16}, {20, SCANS_PER_SWATH + 5}};
+		float intensity_error = mz_error_ppm == 0 ? 1e-5F : PpmQuantizedCodec.INTENSITY_RELATIVE_ERROR + 1e-5F;
+		for (int w = 0; w < MIN_MZS.length; w++) {
+			float precursor = PRECURSORS[w];
+			for (int[] scans : scan_ranges) {
+				for (float[] mz : ranges) {
+					String query = name + ", window " + w + ", scans " + scans[0] + "-" + scans[1] + ", mz " + mz[0] + "-" + mz[1];
+					compare(rows(baseline.range_query(scans[0], scans[1], mz[0], mz[1], precursor)),
+							rows(db.range_query(scans[0], scans[1], mz[0], mz[1], precursor)), mz_error_ppm, query);
+					compare(baseline.xic(scans[0], scans[1], mz[0], mz[1], precursor, Chromatogram.SUM),
+							db.xic(scans[0], scans[1], mz[0], mz[1], precursor, Chromatogram.SUM), intensity_error, "xic sum, " + query);
+					compare(baseline.xic(scans[0], scans[1], mz[0], mz[1], precursor, Chromatogram.MAX),
+							db.xic(scans[0], scans[1], mz[0], mz[1], precursor, Chromatogram.MAX), intensity_error, "xic max, " + query);
+				}
+				compare(baseline.tic(scans[0], scans[1], precursor), db.tic(scans[0], scans[1], precursor), intensity_error,
+						name + ", tic of window " + w + ", scans " + scans[0] + "-" + scans[1]);
+			}
+			// by retention times
+			compare(baseline.xic(0.4F, 3.3F, 310.05F, 700.005F, precursor, Chromatogram.SUM),
+					db.xic(0.4F, 3.3F, 310.05F, 700.005F, precursor, Chromatogram.SUM), intensity_error, name + ", xic by rt, window " + w);
+			compare(baseline.tic(0.4F, 3.3F, precursor), db.tic(0.4F, 3.3F, precursor), intensity_error, name + ", tic by rt, window " + w);
+		}
+	}
+
+	/**
+	 * Compare the peaks of each scan. Mz values of result must be within mz_error_ppm of the
+	 * expected ones; if mz_error_ppm>0 intensities are the ones saved by PpmQuantizedCodec.
+	 */
+	private static void compare(float[][][] expected, float[][][] result, float mz_error_ppm, String query) {
+		check(expected.length == result.length, query + ": " + result.length + " scans instead of " + expected.length);
+		for (int i = 0; i < expected.length; i++) {
+			float[] mzs = expected[i][0];
+			float[] intensities = expected[i][1];
+			check(mzs.length == result[i][0].length, query + ", scan " + i + ": " + result[i][0].length + " peaks instead of " + mzs.length);
+			for (int j = 0; j < mzs.length; j++) {
+				if (mz_error_ppm == 0) {
+					check(result[i][0][j] == mzs[j] && result[i][1][j] == intensities[j], query + ", scan " + i + ": peak "
+							+ result[i][0][j] + " " + result[i][1][j] + " instead of " + mzs[j] + " " + intensities[j]);
+				} else {
+					check(Math.abs(result[i][0][j] - mzs[j]) <= mzs[j] * mz_error_ppm * 1e-6,
+							query + ", scan " + i + ": mz " + result[i][0][j] + " instead of " + mzs[j]);
+					check(result[i][1][j] == PpmQuantizedCodec.decoded_intensity(intensities[j]),
+							query + ", scan " + i + ": intensity " + result[i][1][j] + " instead of " + intensities[j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compare two chromatograms: retention times must be equal, intensities within a relative error.
+	 */
+	private static void compare(Chromatogram expected, Chromatogram result, float relative_error, String query) {
+		check(expected.getFirstScan() == result.getFirstScan(), query + ": first scan " + result.getFirstScan());
+		check(Arrays.equals(expected.getRTs(), result.getRTs()), query + ": different retention times");
+		float[] intensities = expected.getIntensities();
+		check(intensities.length == result.getIntensities().length, query + ": " + result.getIntensities().length + " points");
+		for (int i = 0; i < intensities.length; i++) {
+			check(Math.abs(result.getIntensities()[i] - intensities[i]) <= intensities[i] * relative_error,
+					query + ", point " + i + ": " + result.getIntensities()[i] + " instead of " + intensities[i]);
+		}
+	}
+
+	/**
+	 * @return for each scan of a result of range_query(..), its mz values and intensities
+	 * 			sorted by mz values
+	 */
+	private static float[][][] rows(ArrayList<DBmzRTree.MzIntList> lists) {
+		float[][][] rows = new float[lists.size()][2][];
+		for (int i = 0; i < rows.length; i++) {
+			Float[] mzs = lists.get(i).getMzs();
+			final Float[] intensities = lists.get(i).getIntensities();
+			Integer[] order = new Integer[mzs.length];
+			for (int j = 0; j < order.length; j++) order[j] = j;
+			final Float[] sort_mzs = mzs;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int c = Float.compare(sort_mzs[a], sort_mzs[b]);
+					return c != 0 ? c : Float.compare(intensities[a], intensities[b]);
+				}
+			});
+			rows[i][0] = new float[mzs.length];
+			rows[i][1] = new float[mzs.length];
+			for (int j = 0; j < order.length; j++) {
+				rows[i][0][j] = mzs[order[j]];
+				rows[i][1][j] = intensities[order[j]];
+			}
+		}
+		return rows;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+}
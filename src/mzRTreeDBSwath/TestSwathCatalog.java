@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package mzRTreeDBSwath;
+
+import java.util.Random;
+
+/**
+ * Checks SwathCatalog.getSwath(..) on overlapping, nested and unequal-width windows:
+ * a precursor inside some windows must belong to the one whose center is closest (the
+ * narrowest one if the centers are equally close), and a precursor outside all the 
+ * windows to none.
+ */
+public class TestSwathCatalog {
+
+	public static void main(String args[]) throws Exception {
+		// window 0 is the fake window of MS1 scans
+		// 1 and 2 overlap with different widths, 3 is nested in 4, 5 overlaps 4 but is
+		// not its neighbour by minMz, 6 is after a gap
+		float[] minMzs = {0, 400, 410, 500, 480, 505, 700};
+		float[] maxMzs = {25, 420, 460, 510, 600, 650, 725};
+		SwathCatalog catalog = new SwathCatalog(minMzs, maxMzs);
+
+		check(catalog.getSwath(SwathCatalog.MS1_PRECURSOR) == 0, "MS1 precursor");
+		check(catalog.getSwath(10) == 0, "fake window");
+		check(catalog.getSwath(399.9f) == -1, "before the first window");
+		check(catalog.getSwath(419) == 1, "overlap, closer to the center of the narrow window");
+		check(catalog.getSwath(421) == 2, "after the narrow window");
+		check(catalog.getSwath(505) == 3, "nested window");
+		check(catalog.getSwath(490) == 4, "outer window, left of the nested one");
+		check(catalog.getSwath(509) == 3, "nested window, right part");
+		check(catalog.getSwath(530) == 4, "outer window, right of the nested one");
+		check(catalog.getSwath(590) == 5, "window overlapping a non-neighbour");
+		check(catalog.getSwath(670) == -1, "gap");
+		check(catalog.getSwath(725) == 6, "upper bound of the last window");
+		check(catalog.getSwath(725.1f) == -1, "after the last window");
+
+		// random windows against the definition
+		Random random = new Random(1);
+		int checked = 0;
+		for (int test = 0; test < 200; test++) {
+			int size = 2 + random.nextInt(8);
+			minMzs = new float[size];
+			maxMzs = new float[size];
+			for (int w = 0; w < size; w++) {
+				minMzs[w] = 400 + random.nextInt(40) * 5;
+				maxMzs[w] = minMzs[w] + 5 + random.nextInt(12) * 5;
+			}
+			catalog = new SwathCatalog(minMzs, maxMzs);
+			for (float mz = 390; mz < 720; mz += 0.7f) {
+				int expected = closest(minMzs, maxMzs, mz);
+				int swath = catalog.getSwath(mz);
+				// points at the same distance from two centers can go to either window
+				if (swath != expected && !(swath >= 0 && expected >= 0 && minMzs[swath] <= mz && maxMzs[swath] >= mz
+						&& Math.abs(catalog.getCenter(swath) - mz) == Math.abs(catalog.getCenter(expected) - mz))) {
+					throw new AssertionError("precursor " + mz + ": window " + swath + " instead of " + expected);
+				}
+				checked++;
+			}
+		}
+		System.out.println("SwathCatalog: " + checked + " precursors checked");
+	}
+
+	/**
+	 * @return the window containing mz whose center is closest (the narrowest one if the 
+	 * 			centers are equally close), -1 if there is none
+	 */
+	private static int closest(float[] minMzs, float[] maxMzs, float mz) {
+		int best = -1;
+		for (int w = 0; w < minMzs.length; w++) {
+			if (minMzs[w] > mz || maxMzs[w] < mz) continue;
+			if (best < 0) {
+				best = w;
+				continue;
+			}
+			float distance = Math.abs((minMzs[w] + maxMzs[w]) / 2 - mz);
+			float best_distance = Math.abs((minMzs[best] + maxMzs[best]) / 2 - mz);
+			if (distance < best_distance || (distance == best_distance && maxMzs[w] - minMzs[w] < maxMzs[best] - minMzs[best])) {
+				best = w;
+			}
+		}
+		return best;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package mzRTreeDBSwath;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Encodes a BB of a synthetic strip with each codec and decodes it back, in full and by
+ * sub-ranges: the lossless codecs must return the peaks of the BB unchanged, the
+ * PpmQuantizedCodec within its error bounds on mz values and intensities.
+ */
+public class TestTileCodecs {
+
+	private static final int SPECTRA = 12;
+	private static final int FIRST_RT = 40;
+	//the BB is the second mz tile of the spectra [FIRST_RT+2, FIRST_RT+9] of the strip
+	private static final float TILE_MZ = 600;
+	private static final int BB_MIN_RT = FIRST_RT + 2;
+	private static final int BB_MAX_RT = FIRST_RT + 9;
+
+	public static void main(String args[]) throws Exception {
+		Random random = new Random(1);
+		StripBuffer buffer = new StripBuffer(SPECTRA, 16);
+		// peaks on a grid of 0.05 Th (more than 80 ppm), some of them missing in each spectrum
+		for (int i = 0; i < SPECTRA; i++) {
+			for (int g = 0; g < 4000; g++) {
+				if (random.nextInt(4) == 0) continue;
+				buffer.add_peak(500 + g * 0.05F, (float) Math.exp(random.nextDouble() * 20));
+			}
+			buffer.end_spectrum(FIRST_RT + i + 1, i * 2.5F);
+		}
+		BBnode bb = tile(buffer);
+		check(bb.non_zero_values > 0, "empty BB");
+
+		TileCodec[] codecs = {
+				TileCodecs.SPARSE, TileCodecs.DENSE, TileCodecs.DELTA_VARINT, new PpmQuantizedCodec(1),
+				new PpmQuantizedCodec(0.1F), new DeflateCodec(TileCodecs.SPARSE), new DeflateCodec(TileCodecs.DENSE),
+				new DeflateCodec(TileCodecs.DELTA_VARINT), new DeflateCodec(new PpmQuantizedCodec(1))};
+		//maximum error on mz values of each codec, in ppm (0 for lossless codecs)
+		float[] mz_errors_ppm = {0, 0, 0, PpmQuantizedCodec.max_mz_error_ppm(1), PpmQuantizedCodec.max_mz_error_ppm(0.1F),
+				0, 0, 0, PpmQuantizedCodec.max_mz_error_ppm(1)};
+		for (int c = 0; c < codecs.length; c++) {
+			TileCodec codec = codecs[c];
+			byte[] data = codec.encode(buffer, bb, FIRST_RT);
+			check(TileCodecs.forData(ByteBuffer.wrap(data)).getClass() == codec.getClass(), "codec of " + new String(codec.tag()));
+			float mz_error_ppm = mz_errors_ppm[c];
+
+			// all the BB, then sub-ranges with bounds between the peaks of the grid
+			int checked = compare(data, buffer, BB_MIN_RT, BB_MAX_RT, 0, Float.MAX_VALUE, mz_error_ppm);
+			check(checked == bb.non_zero_values, new String(codec.tag()) + ": " + checked + " peaks instead of " + bb.non_zero_values);
+			compare(data, buffer, BB_MIN_RT + 1, BB_MIN_RT + 3, 610.025F, 640.075F, mz_error_ppm);
+			compare(data, buffer, BB_MAX_RT, BB_MAX_RT + 5, 0, 600.125F, mz_error_ppm);
+			compare(data, buffer, FIRST_RT, BB_MIN_RT - 1, 0, Float.MAX_VALUE, mz_error_ppm);
+			compare(data, buffer, BB_MIN_RT, BB_MAX_RT, 515.025F, 599.975F, mz_error_ppm);
+			System.out.println(new String(codec.tag()) + ": " + data.length + " bytes for " + checked + " peaks");
+		}
+	}
+
+	/**
+	 * @return the BB of the peaks of buffer with mz > TILE_MZ and scan in [BB_MIN_RT, BB_MAX_RT],
+	 * 			whose tiles are set in buffer as MzRTree.compute_BB(..) does
+	 */
+	private static BBnode tile(StripBuffer buffer) {
+		buffer.set_tiles(2);
+		BBnode bb = new BBnode();
+		bb.min_rt = BB_MIN_RT;
+		bb.max_rt = BB_MAX_RT;
+		bb.mz_tile = 1;
+		bb.min_mz = Float.MAX_VALUE;
+		bb.max_mz = 0;
+		ArrayList<Float> mz_axis = new ArrayList<Float>();
+		for (int i = 0; i < buffer.num_spectra; i++) {
+			int j = buffer.start(i);
+			while (j < buffer.end(i) && buffer.mzs[j] <= TILE_MZ) j++;
+			buffer.set_tile_start(i, 0, buffer.start(i));
+			buffer.set_tile_start(i, 1, j);
+			buffer.set_tile_start(i, 2, buffer.end(i));
+			if (FIRST_RT + i < BB_MIN_RT || FIRST_RT + i > BB_MAX_RT) continue;
+			for (; j < buffer.end(i); j++) {
+				bb.min_mz = Math.min(bb.min_mz, buffer.mzs[j]);
+				bb.max_mz = Math.max(bb.max_mz, buffer.mzs[j]);
+				bb.non_zero_values++;
+				if (!mz_axis.contains(buffer.mzs[j])) mz_axis.add(buffer.mzs[j]);
+			}
+		}
+		bb.mz_axis = new float[mz_axis.size()];
+		for (int k = 0; k < bb.mz_axis.length; k++) bb.mz_axis[k] = mz_axis.get(k);
+		Arrays.sort(bb.mz_axis);
+		return bb;
+	}
+
+	/**
+	 * Decode the peaks of the BB in [scan_i, scan_f] x (mzi, mzf] and compare them to the
+	 * ones of buffer, by scan and mz.
+	 *
+	 * @return the number of peaks decoded
+	 */
+	private static int compare(byte[] data, final StripBuffer buffer, int scan_i, int scan_f, float mzi, float mzf, float mz_error_ppm) {
+		final ArrayList<float[]> decoded = new ArrayList<float[]>();
+		TileCodecs.decode(data, BB_MIN_RT, BB_MAX_RT, scan_i, scan_f, mzi, mzf, new PeakVisitor() {
+			@Override
+			public void visit(int scan, float mz, float intensity) {
+				decoded.add(new float[] {scan, mz, intensity});
+			}
+		});
+
+		int p = 0;
+		for (int scan = Math.max(scan_i, BB_MIN_RT); scan <= Math.min(scan_f, BB_MAX_RT); scan++) {
+			int i = scan - FIRST_RT;
+			for (int j = buffer.tile_start(i, 1); j < buffer.tile_end(i, 1); j++) {
+				if (buffer.mzs[j] <= mzi || buffer.mzs[j] > mzf) continue;
+				check(p < decoded.size(), "missing peak " + scan + " " + buffer.mzs[j]);
+				float[] peak = decoded.get(p++);
+				check(peak[0] == scan, "scan " + peak[0] + " instead of " + scan);
+				if (mz_error_ppm == 0) {
+					check(peak[1] == buffer.mzs[j] && peak[2] == buffer.intensities[j],
+							"peak " + peak[1] + " " + peak[2] + " instead of " + buffer.mzs[j] + " " + buffer.intensities[j]);
+				} else {
+					check(Math.abs(peak[1] - buffer.mzs[j]) <= buffer.mzs[j] * mz_error_ppm * 1e-6,
+							"mz " + peak[1] + " instead of " + buffer.mzs[j] + " (" + mz_error_ppm + " ppm)");
+					check(peak[2] == PpmQuantizedCodec.decoded_intensity(buffer.intensities[j]), "intensity " + peak[2] + " of " + buffer.intensities[j]);
+					check(Math.abs(peak[2] - buffer.intensities[j]) <= buffer.intensities[j] * (PpmQuantizedCodec.INTENSITY_RELATIVE_ERROR + Math.ulp(1F)),
+							"intensity " + peak[2] + " instead of " + buffer.intensities[j]);
+				}
+			}
+		}
+		check(p == decoded.size(), (decoded.size() - p) + " unexpected peaks");
+		return p;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of decoded BBs, keyed by BB ID (see DBmzRTree.setTileCache(..)).
+ *
+ * The cache holds at most max_bytes bytes of peaks: when it is full, the least recently
+ * used BBs are evicted. Peaks can be kept out of the Java heap, so that a large cache
+ * does not slow down the garbage collector. A TileCache can be shared by several threads
+ * and by several mzRTrees opened on the same database.
+ */
+public class TileCache {
+
+	private final long max_bytes;
+	protected final boolean off_heap;
+
+	//BBs by access order: the first one is the least recently used
+	private final LinkedHashMap<Integer, DecodedTile> tiles = new LinkedHashMap<Integer, DecodedTile>(1024, 0.75f, true);
+	private long bytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param max_bytes		the maximum number of bytes of the decoded BBs in the cache
+	 * @param off_heap		if true, decoded BBs are saved in direct buffers
+	 */
+	public TileCache(long max_bytes, boolean off_heap) {
+		this.max_bytes = max_bytes;
+		this.off_heap = off_heap;
+	}
+
+	/**
+	 * @return the decoded BB, or null if it is not in the cache
+	 */
+	protected synchronized DecodedTile get(int bb_id) {
+		DecodedTile tile = tiles.get(bb_id);
+		if (tile == null) misses++;
+		else hits++;
+		return tile;
+	}
+
+	/**
+	 * Add a decoded BB to the cache, evicting the least recently used BBs if needed.
+	 * A BB bigger than the cache is not added.
+	 */
+	protected synchronized void put(int bb_id, DecodedTile tile) {
+		if (tile.size() > max_bytes) return;
+		DecodedTile old = tiles.put(bb_id, tile);
+		if (old != null) bytes -= old.size();
+		bytes += tile.size();
+		Iterator<DecodedTile> lru = tiles.values().iterator();
+		while (bytes > max_bytes) {
+			bytes -= lru.next().size();
+			lru.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Remove all the BBs, e.g. after the database has been modified.
+	 */
+	public synchronized void clear() {
+		tiles.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the number of bytes of the decoded BBs in the cache
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getTileCount() {
+		return tiles.size();
+	}
+}
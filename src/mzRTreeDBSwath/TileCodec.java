@@ -0,0 +1,61 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This interface represents a way of saving the binary data of a BB (table DATA of the 
+ * mzRTree database). The binary data of a BB always starts with a 4-byte code identifying 
+ * its codec (see tag()), so that TileCodecs can choose the codec decoding it. A new codec
+ * is added by implementing this interface and registering it with TileCodecs.register(..).
+ */
+interface TileCodec {
+
+	/**
+	 * @return the 4-byte code at the beginning of the BBs saved by this codec
+	 */
+	byte[] tag();
+
+	/**
+	 * Encode the peaks of a BB.
+	 * 
+	 * @param buffer		the spectra of the strip containing the BB
+	 * @param bb			the BB, as computed by MzRTree.compute_BB(..)
+	 * @param first_rt		the scan number (relative to the swath) of the first spectrum in buffer
+	 * 
+	 * @return the binary data of the BB, starting with tag()
+	 */
+	byte[] encode(StripBuffer buffer, BBnode bb, int first_rt);
+
+	/**
+	 * Decode the peaks of a BB whose scan is in [scan_i, scan_f] and whose mz value is in 
+	 * (mzi, mzf]. Peaks are visited by increasing scan and, within a scan, by increasing mz.
+	 * 
+	 * @param data			the binary data of the BB, from data.position() (the tag) to 
+	 * 						data.limit(). Values are read with absolute gets: the position of
+	 * 						data is not modified.
+	 * @param min_scan_BB	the first scan of the BB
+	 * @param max_scan_BB	the last scan of the BB
+	 * @param visitor		receives the decoded peaks
+	 */
+	void decode(ByteBuffer data, int min_scan_BB, int max_scan_BB,
+			int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor);
+}
@@ -0,0 +1,91 @@
+/* 
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ * 
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class contains the codecs available for the binary data of BBs and chooses the 
+ * codec decoding a BB from its first four bytes.
+ */
+class TileCodecs {
+
+	protected static final TileCodec SPARSE = new SparseCodec();
+	protected static final TileCodec DENSE = new DenseCodec();
+	protected static final TileCodec DELTA_VARINT = new DeltaVarintCodec();
+
+	//codecs that can be used for decoding
+	private static final CopyOnWriteArrayList<TileCodec> codecs = new CopyOnWriteArrayList<TileCodec>();
+
+	static {
+		register(SPARSE);
+		register(DENSE);
+		register(DELTA_VARINT);
+		register(new PpmQuantizedCodec(1));
+		register(new DeflateCodec(SPARSE));
+	}
+
+	/**
+	 * Make a codec available for decoding. Its tag must differ from the ones of the codecs
+	 * already registered.
+	 */
+	protected static synchronized void register(TileCodec codec) {
+		for (TileCodec other : codecs) {
+			if (Utils.equals_size4(other.tag(), codec.tag())) {
+				throw new IllegalArgumentException("A codec with tag " + new String(codec.tag()) + " is already registered");
+			}
+		}
+		codecs.add(codec);
+	}
+
+	/**
+	 * @param data		the binary data of a BB, starting at data.position()
+	 * 
+	 * @return the codec that saved the BB
+	 */
+	protected static TileCodec forData(ByteBuffer data) {
+		int offset = data.position();
+		for (TileCodec codec : codecs) {
+			byte[] tag = codec.tag();
+			if (data.get(offset) == tag[0] && data.get(offset + 1) == tag[1] && data.get(offset + 2) == tag[2] && data.get(offset + 3) == tag[3]) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown BB codec: " + (char) data.get(offset) + (char) data.get(offset + 1) 
+				+ (char) data.get(offset + 2) + (char) data.get(offset + 3));
+	}
+
+	/**
+	 * Decode a BB with its codec (see TileCodec.decode(..)).
+	 */
+	protected static void decode(ByteBuffer data, int min_scan_BB, int max_scan_BB,
+			int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor) {
+		forData(data).decode(data, min_scan_BB, max_scan_BB, scan_i, scan_f, mzi, mzf, visitor);
+	}
+
+	/**
+	 * Decode a BB saved in an array (see TileCodec.decode(..)).
+	 */
+	protected static void decode(byte[] data, int min_scan_BB, int max_scan_BB,
+			int scan_i, int scan_f, float mzi, float mzf, PeakVisitor visitor) {
+		decode(ByteBuffer.wrap(data), min_scan_BB, max_scan_BB, scan_i, scan_f, mzi, mzf, visitor);
+	}
+}
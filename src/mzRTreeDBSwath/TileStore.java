@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The binary data of the BBs saved in a flat file next to the database (see
+ * BuildOptions.tile_file) instead of the DATA table. The TILES table keeps the position
+ * and the length of each BB in the file.
+ *
+ * The file is mapped in memory in segments of at most SEGMENT_SIZE bytes. Consecutive
+ * segments overlap by the length of the longest BB, so that each BB is entirely contained
+ * in the segment where it starts and is read without copies. A TileStore is immutable and
+ * can be read by several threads.
+ */
+class TileStore {
+
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	//position in the file and length of each BB, by BB ID (length -1 if the BB is missing)
+	private final long[] offsets;
+	private final int[] lengths;
+	private final long segment_size;
+	private final MappedByteBuffer[] segments;
+
+	/**
+	 * Map the file of the BBs in memory.
+	 *
+	 * @param file		the file of the BBs
+	 * @param offsets	the position of each BB in the file, by BB ID
+	 * @param lengths	the length of each BB, by BB ID (-1 if there is no BB with that ID)
+	 * @throws IOException
+	 */
+	protected TileStore(File file, long[] offsets, int[] lengths) throws IOException {
+		this.offsets = offsets;
+		this.lengths = lengths;
+		int max_length = 0;
+		for (int length : lengths) {
+			max_length = Math.max(max_length, length);
+		}
+		this.segment_size = Math.min(SEGMENT_SIZE, Integer.MAX_VALUE - max_length);
+
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			long file_size = channel.size();
+			segments = new MappedByteBuffer[(int) ((file_size + segment_size - 1) / segment_size)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = i * segment_size;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segment_size + max_length, file_size - start));
+			}
+		} finally {
+			// mappings stay valid after the channel is closed
+			input.close();
+		}
+	}
+
+	/**
+	 * @return the binary data of a BB, from position() to limit() of a view of the mapped
+	 * 			file, or null if there is no BB with this ID
+	 */
+	protected ByteBuffer get(int bb_id) {
+		if (bb_id < 0 || bb_id >= lengths.length || lengths[bb_id] < 0) return null;
+		long offset = offsets[bb_id];
+		int segment = (int) (offset / segment_size);
+		int position = (int) (offset - segment * segment_size);
+		ByteBuffer data = segments[segment].duplicate();
+		data.limit(position + lengths[bb_id]);
+		data.position(position);
+		return data;
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014, Sara Nasso, David Bouyssie, Marc Dubois
+ *
+ * This file is part of mzDB.
+ *
+ * mzDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * mzDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ *  along with mzDb.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package mzRTreeDBSwath;
+
+/**
+ * The most intense peaks of a range (see DBmzRTree.top_k(..)), by decreasing intensity,
+ * as primitive arrays: the i-th peak has scan getScans()[i], mz value getMzs()[i], ...
+ */
+public class TopPeaks {
+
+	private final int[] scans;
+	private final float[] rts;
+	private final float[] mzs;
+	private final float[] intensities;
+
+	protected TopPeaks(int[] scans, float[] rts, float[] mzs, float[] intensities) {
+		this.scans = scans;
+		this.rts = rts;
+		this.mzs = mzs;
+		this.intensities = intensities;
+	}
+
+	/**
+	 * @return the number of peaks (less than k if the range has less than k peaks)
+	 */
+	public int size() {
+		return scans.length;
+	}
+
+	/**
+	 * @return the scans of the peaks, relative to the window
+	 */
+	public int[] getScans() {
+		return scans;
+	}
+
+	/**
+	 * @return the retention times of the scans of the peaks
+	 */
+	public float[] getRTs() {
+		return rts;
+	}
+
+	public float[] getMzs() {
+		return mzs;
+	}
+
+	public float[] getIntensities() {
+		return intensities;
+	}
+}
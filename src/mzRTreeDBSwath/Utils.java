@@ -19,6 +19,8 @@
 
 package mzRTreeDBSwath;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * This class contains some static and generic methods that are used in mzRTree.
@@ -103,6 +105,49 @@ class Utils {
 		return ((((bytes[offset+0]<<24)&0xFF000000) |((bytes[offset+1]<<16)&0x00FF0000) |((bytes[offset+2]<<8)&0x0000FF00) |(bytes[offset+3]&0x000000FF)));
 	}
 
+
+	/**
+	 * @param value		a non negative int
+	 * @return			the number of bytes required by value when saved with intToVarint(..)
+	 * */
+	protected static int varintSize(int value){
+		int size = 1;
+		while ((value >>>= 7) != 0) size++;
+		return size;
+	}
+
+	/**
+	 * Save a non negative int using a variable number of bytes: 7 bits per byte, the highest 
+	 * bit is set if more bytes follow.
+	 * @param value		the int to convert
+	 * @param bytes		the array where to save the bytes 
+	 * @param offset	the position where to save the first byte
+	 * @return			the position following the last saved byte
+	 * */
+	protected static int intToVarint(int value, byte[] bytes, int offset){
+		while ((value & ~0x7F) != 0) {
+			bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Read an int saved by intToVarint(..). Use varintSize(..) on the result to find
+	 * the position of the following value.
+	 * @param bytes		the input buffer (its position is not modified)
+	 * @param offset	the position of the first byte
+	 * @return			the int starting in bytes[offset]
+	 * */
+	protected static int varintToInt(ByteBuffer bytes, int offset){
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = bytes.get(offset++);
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) return value;
+		}
+	}
 	
 	/**
 	 * Print a string in the standard output and terminate the line. 